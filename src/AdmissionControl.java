@@ -0,0 +1,103 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Limits the number of operations running at once and the number of payload bytes they hold in memory
+// RMI gives every call its own thread, so without this a burst of large uploads can run the JVM out of memory
+// Requests that can't be admitted within a short wait are rejected with a ServerBusyException
+public class AdmissionControl {
+    private final String name;
+    private final int maxOperations;
+    private final long maxBytes;
+    private final int queueMs;
+
+    private final Semaphore operations;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong numRejected = new AtomicLong();
+
+    // Releases the resources taken by an admitted operation
+    public class Permit implements AutoCloseable {
+        private long bytes;
+        private boolean released = false;
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        // Counts bytes that the operation only found out it holds once they arrived (eg. a download of unknown size)
+        // They are never rejected, as they are already in memory, but later operations are admitted against them
+        public void hold(long extraBytes) {
+            if (!released && extraBytes > 0) {
+                bytes += extraBytes;
+                inFlightBytes.addAndGet(extraBytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                inFlightBytes.addAndGet(-bytes);
+                operations.release();
+            }
+        }
+    }
+
+    public AdmissionControl(String name, int maxOperations, long maxBytes, int queueMs) {
+        this.name = name;
+        this.maxOperations = maxOperations;
+        this.maxBytes = maxBytes;
+        this.queueMs = queueMs;
+        this.operations = new Semaphore(maxOperations, true);
+    }
+
+    // Reads the limits from <prefix>.maxOperations, <prefix>.maxMB and <prefix>.queueMs
+    public static AdmissionControl fromProperties(String name, String prefix) {
+        int maxOperations = Shared.parsePropertyInteger(prefix + ".maxOperations", "Maximum operations must be a positive integer", 64);
+        int maxMB = Shared.parsePropertyInteger(prefix + ".maxMB", "Maximum in-flight MB must be a positive integer", 512);
+        int queueMs = Shared.parsePropertyInteger(prefix + ".queueMs", "Queue time must be a positive integer", 100);
+        return new AdmissionControl(name, Math.max(1, maxOperations), Math.max(1, maxMB) * 1024L * 1024L, queueMs);
+    }
+
+    // Admits an operation that will hold the given number of payload bytes
+    // Waits up to queueMs for a slot, then rejects the operation
+    public Permit admit(long bytes) throws ServerBusyException {
+        try {
+            if (!operations.tryAcquire(queueMs, TimeUnit.MILLISECONDS)) {
+                throw reject("too many operations in progress (" + maxOperations + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted");
+        }
+
+        // A single request larger than the limit is let through when nothing else is in flight, otherwise it could never run
+        long current = inFlightBytes.addAndGet(bytes);
+        if (current > maxBytes && current != bytes) {
+            inFlightBytes.addAndGet(-bytes);
+            operations.release();
+            throw reject(String.format("too much data in flight (%,d bytes)", current - bytes));
+        }
+
+        return new Permit(bytes);
+    }
+
+    private ServerBusyException reject(String reason) {
+        long rejected = numRejected.incrementAndGet();
+        String msg = name + " is busy, retry later: " + reason;
+        System.out.println(msg + " (" + rejected + " rejected so far)");
+        return new ServerBusyException(msg);
+    }
+
+    public int getActiveOperations() {
+        return maxOperations - operations.availablePermits();
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public long getRejectedCount() {
+        return numRejected.get();
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.Serializable;
+
+// Compact set of filenames that can answer "definitely not present" without asking the server
+// False positives are possible, false negatives are not (for the version the filter was taken at)
+public class BloomFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private long version;
+
+    BloomFilter(int numBits, int numHashes, long version) {
+        this.bits = new long[(numBits + 63) / 64];
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.version = version;
+    }
+
+    // Version of the server's file set when this filter was taken, used to skip transfers when nothing has changed
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // Applies the changes a server sent since our version
+    // Returns false if they start from a different version, in which case the filter is unchanged
+    public synchronized boolean apply(FilterUpdate update) {
+        if (update.getBaseVersion() != version) {
+            return false;
+        }
+
+        for (int index : update.getSet()) {
+            setBit(index);
+        }
+        for (int index : update.getCleared()) {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+        version = update.getVersion();
+        return true;
+    }
+
+    public synchronized void add(String filename) {
+        for (int index : indexes(filename, numBits, numHashes)) {
+            setBit(index);
+        }
+    }
+
+    public synchronized boolean mightContain(String filename) {
+        for (int index : indexes(filename, numBits, numHashes)) {
+            if ((bits[index >>> 6] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized void setBit(int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    // Bit positions for a filename, using double hashing to derive k hashes from two
+    static int[] indexes(String filename, int numBits, int numHashes) {
+        long h1 = hash(filename, 0x9E3779B97F4A7C15L);
+        long h2 = hash(filename, 0xC2B2AE3D27D4EB4FL) | 1;
+
+        int[] indexes = new int[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            indexes[i] = (int) Math.floorMod(h1 + i * h2, (long) numBits);
+        }
+        return indexes;
+    }
+
+    private static long hash(String s, long seed) {
+        long h = seed ^ s.length();
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+
+        // Final mix so that similar filenames spread over the whole filter
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,185 @@
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pool of off-heap buffers in power of two size classes
+// Direct buffers are expensive to allocate and are only freed by the garbage collector, so released buffers are kept
+// for reuse (up to a limit) rather than being dropped. Buffers over 64MB are allocated at their exact size and never
+// pooled, as rounding them up could nearly double the memory they hold
+// The bytes in use limit what can be received (see Payload), so a buffer whose owner is garbage collected without
+// releasing it must stop counting. Owners take a lease on their buffer, and the leases of collected owners are ended
+// the next time a buffer is acquired. Their buffers are freed along with the owner rather than reused
+public class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 26;
+
+    private final long maxPooledBytes;
+
+    // Free buffers for each size class, index i holds buffers of 2^(i + MIN_CLASS_SHIFT) bytes
+    private final List<ArrayDeque<ByteBuffer>> freeBuffers = new ArrayList<>();
+    private long pooledBytes = 0;
+
+    // Metrics
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+    private final AtomicLong leakedBytes = new AtomicLong();
+
+    // Leases that haven't ended yet. A lease must stay reachable to be queued once its owner is collected
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<Object> collectedOwners = new ReferenceQueue<>();
+
+    // Counts a buffer as in use for as long as its owner is reachable or until it is released, whichever comes first
+    // Only the capacity is kept, so that the lease doesn't keep the buffer's memory alive
+    public static final class Lease extends PhantomReference<Object> {
+        private final long capacity;
+
+        private Lease(Object owner, long capacity, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.capacity = capacity;
+        }
+    }
+
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = MIN_CLASS_SHIFT; i <= MAX_CLASS_SHIFT; i++) {
+            freeBuffers.add(new ArrayDeque<>());
+        }
+    }
+
+    // Returns a cleared buffer with a limit of size bytes (the capacity may be larger)
+    public ByteBuffer acquire(int size) {
+        endCollectedLeases();
+        inUseBytes.addAndGet(capacityFor(size));
+        return take(size);
+    }
+
+    // Like acquire, but returns null instead if the buffer would take the bytes in use above maxInUseBytes
+    // A buffer larger than the limit is still handed out when nothing else is in use, otherwise it could never be had
+    public ByteBuffer tryAcquire(int size, long maxInUseBytes) {
+        endCollectedLeases();
+        long capacity = capacityFor(size);
+        while (true) {
+            long current = inUseBytes.get();
+            if (current > 0 && current + capacity > maxInUseBytes) {
+                return null;
+            }
+            if (inUseBytes.compareAndSet(current, current + capacity)) {
+                return take(size);
+            }
+        }
+    }
+
+    // Takes a buffer from the pool, or allocates one. The caller has already counted it as in use
+    private ByteBuffer take(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+
+        if (sizeClass < freeBuffers.size()) {
+            synchronized (this) {
+                buffer = freeBuffers.get(sizeClass).pollFirst();
+                if (buffer != null) {
+                    pooledBytes -= buffer.capacity();
+                }
+            }
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect((int) capacityFor(size));
+            allocatedBytes.addAndGet(buffer.capacity());
+        } else {
+            reusedBytes.addAndGet(buffer.capacity());
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    // Returns the capacity of the buffer that acquire would return for the given size. Buffers are rounded up to their
+    // size class, except those too large to pool
+    public static long capacityFor(int size) {
+        int sizeClass = sizeClass(size);
+        return sizeClass <= MAX_CLASS_SHIFT - MIN_CLASS_SHIFT ? 1L << (sizeClass + MIN_CLASS_SHIFT) : size;
+    }
+
+    // Ties an acquired buffer to the object that holds it, so that the buffer stops counting as in use if the owner is
+    // garbage collected without releasing it. The buffer is then released with release(buffer, lease)
+    public Lease lease(Object owner, ByteBuffer buffer) {
+        Lease lease = new Lease(owner, buffer.capacity(), collectedOwners);
+        leases.add(lease);
+        return lease;
+    }
+
+    // Returns a leased buffer to the pool and ends its lease. The buffer must not be used afterwards
+    public void release(ByteBuffer buffer, Lease lease) {
+        if (leases.remove(lease)) {
+            lease.clear();
+            release(buffer);
+        }
+    }
+
+    // Ends the leases of owners that were collected without releasing their buffers
+    private void endCollectedLeases() {
+        Reference<?> reference;
+        while ((reference = collectedOwners.poll()) != null) {
+            Lease lease = (Lease) reference;
+            if (leases.remove(lease)) {
+                inUseBytes.addAndGet(-lease.capacity);
+                leakedBytes.addAndGet(lease.capacity);
+            }
+        }
+    }
+
+    // Returns a buffer to the pool. The buffer must not be used afterwards
+    public void release(ByteBuffer buffer) {
+        inUseBytes.addAndGet(-buffer.capacity());
+
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass >= freeBuffers.size() || buffer.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (pooledBytes + buffer.capacity() <= maxPooledBytes) {
+                freeBuffers.get(sizeClass).addFirst(buffer);
+                pooledBytes += buffer.capacity();
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+
+    // Total bytes of new buffers allocated
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    // Total bytes handed out from the pool instead of being allocated
+    public long getReusedBytes() {
+        return reusedBytes.get();
+    }
+
+    public long getInUseBytes() {
+        return inUseBytes.get();
+    }
+
+    // Total bytes of buffers whose owners were garbage collected without releasing them
+    public long getLeakedBytes() {
+        return leakedBytes.get();
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
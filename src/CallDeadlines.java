@@ -0,0 +1,107 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+// Puts a deadline (see DeadlineSocketFactory) on every call a front end makes to a server, based on the method called
+// Calls that return little data must be answered within -Dfrontend.deadline.shortMs (default 2000). Uploads and range
+// downloads get that plus the time to send their data at -Dfrontend.deadline.minKBps (default 1024). Whole file
+// downloads, whose size isn't known up front, fail if no data arrives for -Dfrontend.deadline.idleMs (default 5000)
+// Pieces of copies between servers get the time to send their data. Committing a copy has no deadline, it is only used
+// by the rebalancer in the background and lasts as long as writing the file does
+public class CallDeadlines {
+    private final int shortMs;
+    private final int idleMs;
+    private final int minKBps;
+
+    public CallDeadlines(int shortMs, int idleMs, int minKBps) {
+        this.shortMs = shortMs;
+        this.idleMs = idleMs;
+        this.minKBps = Math.max(1, minKBps);
+    }
+
+    public static CallDeadlines fromProperties() {
+        int shortMs = Shared.parsePropertyInteger("frontend.deadline.shortMs", "Deadline must be a positive integer", 2000);
+        int idleMs = Shared.parsePropertyInteger("frontend.deadline.idleMs", "Deadline must be a positive integer", 5000);
+        int minKBps = Shared.parsePropertyInteger("frontend.deadline.minKBps", "Minimum transfer rate must be a positive integer", 1024);
+        return new CallDeadlines(shortMs, idleMs, minKBps);
+    }
+
+    public int getShortMs() {
+        return shortMs;
+    }
+
+    // Time allowed to send the given number of bytes, on top of the short deadline
+    private long transferMs(long bytes) {
+        return shortMs + bytes / minKBps * 1000 / 1024;
+    }
+
+    // Wraps a server stub so that every call through it has a deadline
+    public ServerInterface wrap(ServerInterface server) {
+        if (server == null) {
+            return null;
+        }
+
+        return (ServerInterface) Proxy.newProxyInstance(ServerInterface.class.getClassLoader(), new Class<?>[] { ServerInterface.class }, new DeadlineHandler(server));
+    }
+
+    // Handles calls to wrapped server stubs
+    private class DeadlineHandler implements InvocationHandler {
+        private final ServerInterface server;
+
+        DeadlineHandler(ServerInterface server) {
+            this.server = server;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(server, args);
+            }
+
+            // Servers are sent the real stub of another server, the wrapper only exists in this JVM
+            if (args != null) {
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i] != null && Proxy.isProxyClass(args[i].getClass()) && Proxy.getInvocationHandler(args[i]) instanceof DeadlineHandler) {
+                        args[i] = ((DeadlineHandler) Proxy.getInvocationHandler(args[i])).server;
+                    }
+                }
+            }
+
+            switch (method.getName()) {
+                case "download":
+                    DeadlineSocketFactory.setDeadline(0, idleMs);
+                    break;
+                case "downloadRange":
+                    DeadlineSocketFactory.setDeadline(transferMs((Integer) args[2]), 0);
+                    break;
+                case "upload":
+                    DeadlineSocketFactory.setDeadline(transferMs(((Payload) args[1]).size()), 0);
+                    break;
+                case "copyRangeTo":
+                    DeadlineSocketFactory.setDeadline(transferMs((Integer) args[3]), 0);
+                    break;
+                case "commitCopy":
+                    DeadlineSocketFactory.clearDeadline();
+                    break;
+                case "list":
+                case "subscribe":
+                    // Lists (and the changes a subscription has missed) grow with the number of files, so only require
+                    // that they keep arriving
+                    DeadlineSocketFactory.setDeadline(0, shortMs);
+                    break;
+                default:
+                    DeadlineSocketFactory.setDeadline(shortMs, 0);
+                    break;
+            }
+
+            try {
+                return method.invoke(server, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } finally {
+                DeadlineSocketFactory.clearDeadline();
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.Serializable;
+import java.util.List;
+
+// Changes to the files on a server, sent to front ends that subscribe to its change feed
+// Every change has a sequence number, so a front end can tell when it has missed some and ask for them again
+// Sequence numbers start again when the server restarts, which is detected by the epoch changing
+public class ChangeBatch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // A file being added to or deleted from the server
+    public static class Event implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long seq;
+        private final boolean added;
+        private final String filename;
+
+        Event(long seq, boolean added, String filename) {
+            this.seq = seq;
+            this.added = added;
+            this.filename = filename;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public boolean isAdded() {
+            return added;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+    }
+
+    private final long epoch;
+    private final long lastSeq;
+    private final List<Event> events;
+
+    // Every file on the server, sent instead of the missed events when they are no longer kept. Null otherwise
+    private final List<String> snapshot;
+
+    ChangeBatch(long epoch, long lastSeq, List<Event> events, List<String> snapshot) {
+        this.epoch = epoch;
+        this.lastSeq = lastSeq;
+        this.events = events;
+        this.snapshot = snapshot;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    // Sequence number of the last change included. A batch with no events is a heartbeat saying nothing has changed
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    public List<String> getSnapshot() {
+        return snapshot;
+    }
+}
@@ -0,0 +1,8 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Receives a server's changes after subscribing to its change feed
+public interface ChangeListener extends Remote {
+    // Called with changes in sequence order, or with an empty batch as a heartbeat when nothing has changed
+    void changed(ChangeBatch batch) throws RemoteException;
+}
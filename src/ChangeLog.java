@@ -0,0 +1,174 @@
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// A server's change feed. Files being added and deleted are numbered and kept in memory, up to
+// -Dserver.changes.keep (default 10000), and pushed to subscribed front ends by a background thread
+// Subscribers are sent a heartbeat when nothing has changed for HEARTBEAT_MS, so they can tell a quiet server from a
+// lost subscription. A subscriber that can't be reached, or falls so far behind that its changes are no longer kept,
+// is dropped and has to subscribe again
+public class ChangeLog {
+    public static final int HEARTBEAT_MS = 1000;
+
+    // Most changes sent to a subscriber in one call
+    private static final int MAX_BATCH = 1000;
+
+    // Identifies this run of the server, since sequence numbers start again on restart
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final int keep;
+
+    private final ArrayDeque<ChangeBatch.Event> recent = new ArrayDeque<>();
+    private long lastSeq = 0;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+
+    private final Thread pusher;
+    private volatile boolean running = true;
+
+    private static class Subscriber {
+        final ChangeListener listener;
+        long sentSeq;
+        long lastSentTime = System.currentTimeMillis();
+
+        Subscriber(ChangeListener listener, long sentSeq) {
+            this.listener = listener;
+            this.sentSeq = sentSeq;
+        }
+    }
+
+    // Lists the files on the server, for subscribers that need a full listing
+    public interface Listing {
+        List<String> call() throws RemoteException;
+    }
+
+    public ChangeLog(int keep) {
+        this.keep = Math.max(1, keep);
+
+        pusher = new Thread(this::pushChanges, "change-feed");
+        pusher.setDaemon(true);
+        pusher.start();
+    }
+
+    public static ChangeLog fromProperties() {
+        return new ChangeLog(Shared.parsePropertyInteger("server.changes.keep", "Number of changes kept must be a positive integer", 10000));
+    }
+
+    public synchronized void added(String filename) {
+        append(true, filename);
+    }
+
+    public synchronized void deleted(String filename) {
+        append(false, filename);
+    }
+
+    private void append(boolean added, String filename) {
+        recent.addLast(new ChangeBatch.Event(++lastSeq, added, filename));
+        if (recent.size() > keep) {
+            recent.removeFirst();
+        }
+        notifyAll();
+    }
+
+    // Subscribes a listener to the changes after afterSeq, from a previous subscription with the given epoch
+    // The changes that are already known are returned, and later ones are pushed to the listener. If they are not
+    // kept anymore (or the server has restarted) the current listing is returned instead, from listFiles
+    public ChangeBatch subscribe(ChangeListener listener, long knownEpoch, long afterSeq, Listing listFiles) throws RemoteException {
+        long snapshotSeq;
+        synchronized (this) {
+            subscribers.removeIf(subscriber -> subscriber.listener.equals(listener));
+
+            if (knownEpoch == epoch && afterSeq <= lastSeq && afterSeq >= lastSeq - recent.size()) {
+                List<ChangeBatch.Event> events = eventsAfter(afterSeq, Integer.MAX_VALUE);
+                subscribers.add(new Subscriber(listener, lastSeq));
+                return new ChangeBatch(epoch, lastSeq, events, null);
+            }
+
+            // Changes after this point are pushed and applied on top of the listing, so it doesn't matter whether the
+            // listing taken below already includes them
+            snapshotSeq = lastSeq;
+            subscribers.add(new Subscriber(listener, snapshotSeq));
+        }
+
+        return new ChangeBatch(epoch, snapshotSeq, new ArrayList<>(), listFiles.call());
+    }
+
+    public synchronized void unsubscribe(ChangeListener listener) {
+        subscribers.removeIf(subscriber -> subscriber.listener.equals(listener));
+    }
+
+    // Stops pushing changes, when the server shuts down
+    public synchronized void close() {
+        running = false;
+        subscribers.clear();
+        notifyAll();
+    }
+
+    private List<ChangeBatch.Event> eventsAfter(long seq, int max) {
+        List<ChangeBatch.Event> events = new ArrayList<>();
+        for (ChangeBatch.Event event : recent) {
+            if (events.size() >= max) {
+                break;
+            }
+            if (event.getSeq() > seq) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    private void pushChanges() {
+        while (running) {
+            // Work out what each subscriber needs while holding the lock, then send it without
+            List<Subscriber> toSend = new ArrayList<>();
+            List<ChangeBatch> batches = new ArrayList<>();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (Iterator<Subscriber> it = subscribers.iterator(); it.hasNext(); ) {
+                    Subscriber subscriber = it.next();
+                    if (subscriber.sentSeq < lastSeq - recent.size()) {
+                        // Its changes have been discarded, it will notice the missing heartbeats and subscribe again
+                        it.remove();
+                        continue;
+                    }
+
+                    if (subscriber.sentSeq < lastSeq || now - subscriber.lastSentTime >= HEARTBEAT_MS) {
+                        List<ChangeBatch.Event> events = eventsAfter(subscriber.sentSeq, MAX_BATCH);
+                        long batchSeq = events.isEmpty() ? subscriber.sentSeq : events.get(events.size() - 1).getSeq();
+                        toSend.add(subscriber);
+                        batches.add(new ChangeBatch(epoch, batchSeq, events, null));
+                    }
+                }
+
+                // Sleep until there are changes or a heartbeat is due
+                if (toSend.isEmpty()) {
+                    try {
+                        wait(HEARTBEAT_MS / 4);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            for (int i = 0; i < toSend.size(); i++) {
+                Subscriber subscriber = toSend.get(i);
+                ChangeBatch batch = batches.get(i);
+
+                // One slow front end shouldn't hold up the others for long
+                DeadlineSocketFactory.setDeadline(HEARTBEAT_MS * 2, 0);
+                try {
+                    subscriber.listener.changed(batch);
+                    synchronized (this) {
+                        subscriber.sentSeq = Math.max(subscriber.sentSeq, batch.getLastSeq());
+                        subscriber.lastSentTime = System.currentTimeMillis();
+                    }
+                } catch (RemoteException e) {
+                    synchronized (this) {
+                        subscribers.remove(subscriber);
+                    }
+                } finally {
+                    DeadlineSocketFactory.clearDeadline();
+                }
+            }
+        }
+    }
+}
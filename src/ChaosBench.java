@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Measures how the system copes with a failing server. A local cluster is kept under a steady load from several
+// clients while faults are injected into server 1, one type at a time. Each fault has three phases of equal length:
+// a healthy baseline, the fault, and recovery after the fault is removed
+//
+// java ChaosBench [seconds per phase] [process] [faults]
+//     seconds per phase - default 10
+//     process           - run the servers as child JVMs rather than in this JVM, so that kill is a real process kill
+//     faults            - comma separated list of kill, unbind, latency, stall and diskfull (default all of them)
+//
+// For each fault it reports:
+//     detect    - time from the fault until the front end disconnected the server ("-" if it never did)
+//     reconnect - time from removing the fault until the front end reconnected the server ("-" if it never did)
+//     recover   - time from removing the fault until clients saw baseline throughput with no errors for a second
+//     errors    - share of client calls that failed from the fault until the end of recovery
+//     min tput  - the lowest throughput in any quarter second, as a percentage of the baseline
+//     p99       - 99th percentile client latency during the baseline and during the fault
+//
+// Options: chaos.clients (default 8), chaos.files (default 100), chaos.fileKB (default 64) and chaos.latencyMs, the
+// delay added by the latency fault (default 200). Front end and server options are passed on as usual
+public class ChaosBench {
+    private static final int NUM_SERVERS = 3;
+    private static final int FAULTY_SERVER = 1;
+
+    // Throughput is measured in buckets of this length, and recovery needs RECOVERY_BUCKETS healthy buckets in a row
+    private static final int BUCKET_MS = 250;
+    private static final int RECOVERY_BUCKETS = 4;
+    private static final double RECOVERED_THROUGHPUT = 0.9;
+
+    private enum Fault { KILL, UNBIND, LATENCY, STALL, DISKFULL }
+
+    // A completed client call
+    private static class Sample {
+        final long endMillis;
+        final int latencyMicros;
+        final boolean ok;
+
+        Sample(long endMillis, int latencyMicros, boolean ok) {
+            this.endMillis = endMillis;
+            this.latencyMicros = latencyMicros;
+            this.ok = ok;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Sample> samples = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final List<String> filenames = new ArrayList<>();
+    private final int fileSize;
+    private final int latencyMs;
+
+    private ChaosBench(int fileSize, int latencyMs) {
+        this.fileSize = fileSize;
+        this.latencyMs = latencyMs;
+    }
+
+    public static void main(String[] args) {
+        int phaseSeconds = Shared.parseCommandLineInteger(args, 0, "Seconds per phase must be a positive integer", 10);
+        boolean childProcesses = args.length >= 2 && args[1].equalsIgnoreCase("process");
+
+        List<Fault> faults = new ArrayList<>();
+        if (args.length >= 3) {
+            for (String name : args[2].split(",")) {
+                try {
+                    faults.add(Fault.valueOf(name.trim().toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Unknown fault '" + name + "', must be one of " + Arrays.toString(Fault.values()).toLowerCase());
+                    return;
+                }
+            }
+        } else {
+            faults.addAll(Arrays.asList(Fault.values()));
+        }
+
+        int clients = Shared.parsePropertyInteger("chaos.clients", "Number of clients must be a positive integer", 8);
+        int numFiles = Shared.parsePropertyInteger("chaos.files", "Number of files must be a positive integer", 100);
+        int fileKB = Shared.parsePropertyInteger("chaos.fileKB", "File size must be a positive integer", 64);
+        int latencyMs = Shared.parsePropertyInteger("chaos.latencyMs", "Latency must be a positive integer", 200);
+
+        // Servers only accept fault injection when asked to
+        System.setProperty("server.faults", "true");
+
+        try {
+            new ChaosBench(fileKB * 1024, latencyMs).run(phaseSeconds * 1000L, childProcesses, faults, clients, numFiles);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Benchmark failed: " + e.toString());
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    private void run(long phaseMs, boolean childProcesses, List<Fault> faults, int clients, int numFiles) throws IOException, InterruptedException {
+        List<String> results = new ArrayList<>();
+
+        try (LocalCluster cluster = new LocalCluster(NUM_SERVERS, childProcesses)) {
+            FrontEnd frontEnd = cluster.startFrontEnd();
+            FrontEndInterface stub = cluster.getFrontEndStub();
+
+            // Every file is on every server, so that all reads can fail over
+            for (int i = 0; i < numFiles; i++) {
+                String filename = "chaos_" + i;
+                frontEnd.upload(filename, Payload.wrap(generateData()), true);
+                filenames.add(filename);
+            }
+            System.out.println(String.format("Preloaded %,d files of %,d bytes, starting %d clients", numFiles, fileSize, clients));
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                int clientID = i;
+                Thread thread = new Thread(() -> runClient(stub, clientID), "chaos-client-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+
+            for (Fault fault : faults) {
+                System.out.println("Testing fault: " + fault.name().toLowerCase());
+                long start = System.currentTimeMillis();
+                Thread.sleep(phaseMs);
+
+                long injected = System.currentTimeMillis();
+                inject(cluster, fault);
+                Thread.sleep(phaseMs);
+
+                // Restarting a child JVM takes a while, so recovery is timed from when the server is back
+                clear(cluster, fault);
+                long cleared = System.currentTimeMillis();
+                Thread.sleep(phaseMs);
+
+                long end = System.currentTimeMillis();
+                results.add(analyse(fault, frontEnd, start, injected, cleared, end));
+
+                // Only keep what the next fault needs
+                samples.removeIf(sample -> sample.endMillis < end);
+            }
+
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join(5000);
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %10s %10s %8s %9s %21s", "fault", "detect", "reconnect", "recover", "errors", "min tput", "p99 base/fault"));
+        for (String result : results) {
+            System.out.println(result);
+        }
+    }
+
+    private void inject(LocalCluster cluster, Fault fault) throws RemoteException {
+        switch (fault) {
+            case KILL:
+                cluster.stopServer(FAULTY_SERVER);
+                break;
+            case UNBIND:
+                cluster.unbindServer(FAULTY_SERVER);
+                break;
+            case LATENCY:
+                getFaults(cluster).setLatency(latencyMs);
+                break;
+            case STALL:
+                getFaults(cluster).setStalled(true);
+                break;
+            case DISKFULL:
+                getFaults(cluster).setDiskFull(true);
+                break;
+        }
+    }
+
+    private void clear(LocalCluster cluster, Fault fault) throws RemoteException {
+        switch (fault) {
+            case KILL:
+                cluster.startServer(FAULTY_SERVER);
+                break;
+            case UNBIND:
+                cluster.rebindServer(FAULTY_SERVER);
+                break;
+            default:
+                getFaults(cluster).clear();
+                break;
+        }
+    }
+
+    private static FaultControl getFaults(LocalCluster cluster) throws RemoteException {
+        FaultControl faults = cluster.getFaults(FAULTY_SERVER);
+        if (faults == null) {
+            throw new RemoteException("Server " + FAULTY_SERVER + " does not have fault injection enabled");
+        }
+        return faults;
+    }
+
+    // Makes calls until the benchmark ends: mostly downloads, with some existence checks, uploads and listings
+    // A call counts as failed if it throws or doesn't find (or store) the file
+    private void runClient(FrontEndInterface frontEnd, int clientID) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] data = generateData();
+        int uploads = 0;
+
+        while (running.get()) {
+            String filename = filenames.get(random.nextInt(filenames.size()));
+            int op = random.nextInt(100);
+
+            long start = System.nanoTime();
+            boolean ok;
+            try {
+                if (op < 60) {
+                    Payload downloaded = frontEnd.download(filename);
+                    ok = downloaded != null;
+                    if (ok) {
+                        downloaded.checkReceived().release();
+                    }
+                } else if (op < 75) {
+                    ok = frontEnd.fileExists(filename);
+                } else if (op < 90) {
+                    // Each client overwrites its own few files, so the number of files stays the same
+                    ok = frontEnd.upload("chaos_client" + clientID + "_" + (uploads++ % 10), Payload.wrap(data), true).startsWith("Uploaded");
+                } else {
+                    ok = frontEnd.list().length > 0;
+                }
+            } catch (RemoteException e) {
+                ok = false;
+            }
+
+            long end = System.nanoTime();
+            samples.add(new Sample(System.currentTimeMillis(), (int) Math.min((end - start) / 1000, Integer.MAX_VALUE), ok));
+        }
+    }
+
+    private String analyse(Fault fault, FrontEnd frontEnd, long start, long injected, long cleared, long end) {
+        List<Sample> baseline = new ArrayList<>();
+        List<Sample> faulty = new ArrayList<>();
+        int numBuckets = (int) ((end - injected) / BUCKET_MS);
+        int[] bucketOk = new int[numBuckets];
+        int[] bucketErrors = new int[numBuckets];
+        long calls = 0;
+        long errors = 0;
+
+        for (Sample sample : samples) {
+            if (sample.endMillis < start || sample.endMillis >= end) {
+                continue;
+            }
+
+            if (sample.endMillis < injected) {
+                if (sample.ok) {
+                    baseline.add(sample);
+                }
+                continue;
+            }
+
+            calls++;
+            if (!sample.ok) {
+                errors++;
+            }
+            if (sample.endMillis < cleared) {
+                faulty.add(sample);
+            }
+
+            int bucket = (int) ((sample.endMillis - injected) / BUCKET_MS);
+            if (bucket < numBuckets) {
+                if (sample.ok) {
+                    bucketOk[bucket]++;
+                } else {
+                    bucketErrors[bucket]++;
+                }
+            }
+        }
+
+        double baselinePerBucket = baseline.size() * (double) BUCKET_MS / Math.max(injected - start, 1);
+
+        // The lowest throughput at any point from the fault until the end of recovery
+        int minOk = Integer.MAX_VALUE;
+        for (int ok : bucketOk) {
+            minOk = Math.min(minOk, ok);
+        }
+        String minThroughput = numBuckets == 0 || baselinePerBucket == 0 ? "-" : String.format("%.0f%%", 100 * minOk / baselinePerBucket);
+
+        // Recovered once a run of buckets after the fault was removed are all healthy
+        String recover = "-";
+        int firstCleared = (int) ((cleared - injected + BUCKET_MS - 1) / BUCKET_MS);
+        for (int bucket = firstCleared; bucket + RECOVERY_BUCKETS <= numBuckets; bucket++) {
+            boolean healthy = true;
+            for (int i = bucket; i < bucket + RECOVERY_BUCKETS; i++) {
+                if (bucketErrors[i] > 0 || bucketOk[i] < baselinePerBucket * RECOVERED_THROUGHPUT) {
+                    healthy = false;
+                    break;
+                }
+            }
+            if (healthy) {
+                recover = (injected + (long) bucket * BUCKET_MS - cleared) + "ms";
+                break;
+            }
+        }
+
+        long disconnected = frontEnd.getLastDisconnectTime(FAULTY_SERVER - 1);
+        long reconnected = frontEnd.getLastReconnectTime(FAULTY_SERVER - 1);
+        String detect = disconnected >= injected && disconnected < end ? (disconnected - injected) + "ms" : "-";
+        String reconnect = reconnected >= cleared && reconnected < end ? (reconnected - cleared) + "ms" : "-";
+
+        String errorRate = String.format("%.1f%%", calls == 0 ? 0 : 100.0 * errors / calls);
+        String latency = String.format("%,.1f/%,.1fms", p99(baseline) / 1000.0, p99(faulty) / 1000.0);
+        return String.format("%-10s %10s %10s %10s %8s %9s %21s", fault.name().toLowerCase(), detect, reconnect, recover, errorRate, minThroughput, latency);
+    }
+
+    private static int p99(List<Sample> samples) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+
+        int[] latencies = new int[samples.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = samples.get(i).latencyMicros;
+        }
+        Arrays.sort(latencies);
+        return latencies[Math.min(latencies.length - 1, (int) Math.ceil(latencies.length * 0.99) - 1)];
+    }
+
+    private byte[] generateData() {
+        byte[] data = new byte[fileSize];
+        ThreadLocalRandom.current().nextBytes(data);
+        return data;
+    }
+}
@@ -1,4 +1,3 @@
-import javafx.application.Platform;
 import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
@@ -8,10 +7,6 @@ import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -19,7 +14,6 @@ import java.util.Optional;
 import java.util.function.UnaryOperator;
 
 public class ClientController {
-    private static final String FRONTEND_RMI_NAME = "FrontEnd";
     private static final String DEFAULT_IP = "localhost";
     private static final int DEFAULT_PORT = 1099;
     public static final String BASE_DIR = "client_files/";
@@ -39,7 +33,11 @@ public class ClientController {
     // Listview
     @FXML private ListView<String> listView;
 
-    // FrontEnd connection
+    // Uploads and downloads in progress
+    @FXML private ListView<TransferManager.Transfer> transferView;
+    private TransferManager transferManager;
+
+    // FrontEnd connection. This is a pool of every front end in the registry so that calls fail over between them
     private FrontEndInterface frontEnd;
 
     // Formatter to restrict inputs to only numbers
@@ -61,6 +59,10 @@ public class ClientController {
         textPort.setTextFormatter(new TextFormatter<String>(integerFilter));
 
         Log.init(listView);
+
+        transferManager = new TransferManager();
+        transferView.setItems(transferManager.getTransfers());
+        transferView.setCellFactory(view -> transferManager.new Cell());
     }
 
     private void setUIState() {
@@ -97,18 +99,24 @@ public class ClientController {
         String hostname = textIP.getText();
         int port = Integer.parseInt(textPort.getText());
 
-        Log.log("Retrieving front end stub at " + hostname + ":" + port);
+        Log.log("Retrieving front end stubs at " + hostname + ":" + port);
 
         Task<Boolean> task = new Task<Boolean>() {
             @Override protected Boolean call() {
-                // Attempt to connect to registry and retrieve stub
+                // Attempt to connect to registry and retrieve stubs
                 try {
                     Registry registry = LocateRegistry.getRegistry(hostname, port);
-                    frontEnd = (FrontEndInterface) registry.lookup(FRONTEND_RMI_NAME);
-                    Log.log("Succesfully retrieved stub");
+                    FrontEndPool pool = new FrontEndPool(registry);
+                    if (pool.size() == 0) {
+                        Log.log("No front ends are bound in the registry");
+                        return false;
+                    }
+
+                    frontEnd = pool;
+                    Log.log("Succesfully retrieved " + pool.size() + " front end stub(s)");
                     return true;
 
-                } catch (RemoteException | NotBoundException e) {
+                } catch (RemoteException e) {
                     // Output message and disconnect if a failure occurs
                     Log.log(e.getMessage());
                     return false;
@@ -137,6 +145,10 @@ public class ClientController {
                     } else {
                         return -1;
                     }
+                } catch (ServerBusyException e) {
+                    // The system is overloaded but still connected, so just abandon the request
+                    Log.log(e.getMessage());
+                    return -1;
                 } catch (RemoteException e) {
                     Log.log(e.getMessage());
                     return 0;
@@ -172,6 +184,9 @@ public class ClientController {
                     try {
                         Log.log(frontEnd.delete(result.get()));
                         return true;
+                    } catch (ServerBusyException e) {
+                        Log.log(e.getMessage());
+                        return true;
                     } catch (RemoteException e) {
                         Log.log(e.getMessage());
                         return false;
@@ -195,34 +210,14 @@ public class ClientController {
             return;
         }
 
-        Task<DownloadedFile> task = new Task<DownloadedFile>() {
-            @Override protected DownloadedFile call() {
-                try {
-                    byte[] data = frontEnd.download(result.get());
-                    return new DownloadedFile(false, data);
-                } catch (RemoteException e) {
-                    // Output message if a failure occurs
-                    // Disconnect is done by setting the rmiError flag of DownloadedFile to true
-                    Log.log(e.getMessage());
-                    return new DownloadedFile(true, null);
-                }
-            }
-        };
-
-        task.setOnSucceeded(event -> {
-            DownloadedFile df = task.getValue();
-            if (df.hadRMIError()) {
-                quit();
-                return;
-            } else if (df.containsData()) {
-                saveFile(result.get(), df.getData());
-            } else {
-                Log.log("File does not exist on the available servers (or an internal server error occurred)");
-            }
+        // The file is streamed straight to disk, so ask where to save it first
+        File outFile = chooseSaveFile(result.get());
+        if (outFile == null) {
+            return;
+        }
 
-            setUIState();
-        });
-        startTask(task);
+        Log.log("Queued download of '" + result.get() + "'");
+        transferManager.download(frontEnd, result.get(), outFile);
     }
 
     @FXML
@@ -245,6 +240,9 @@ public class ClientController {
                     }
                     return true;
 
+                } catch (ServerBusyException e) {
+                    Log.log(e.getMessage());
+                    return true;
                 } catch (RemoteException e) {
                     // Output message and disconnect if a failure occurs
                     Log.log(e.getMessage());
@@ -259,6 +257,7 @@ public class ClientController {
 
     @FXML
     private void quit() {
+        transferManager.cancelAll();
         frontEnd = null;
         Log.log("Discarded stub reference from memory");
         setUIState();
@@ -295,62 +294,17 @@ public class ClientController {
         Optional<ButtonType> resultMode = a.showAndWait();
         boolean highReliability = resultMode.isPresent() && resultMode.get() == yes;
 
-        Task<Boolean> task = new Task<Boolean>() {
-            @Override protected Boolean call() {
-                // Read file before sending
-                Log.log("Reading file from disk");
-                byte[] bytes;
-                try {
-                    bytes = Files.readAllBytes(file.toPath());
-                } catch (IOException e) {
-                    // Handle error
-                    // Note that we still return true because a client error has occurred, not an RMI error
-                    Log.log("Error reading file from disk. " + e.getMessage());
-                    return true;
-                }
-
-                // Send file through front end
-                try {
-                    Log.log("Uploading file");
-                    String response = frontEnd.upload(resultName.get(), bytes, highReliability);
-                    Log.log(response);
-                } catch (RemoteException e) {
-                    // Output message and disconnect if a failure occurs
-                    Log.log(e.getMessage());
-                    return false;
-                }
-
-                return true;
-            }
-        };
-
-        updateOnTaskEnd(task);
-        startTask(task);
+        // The file is read from disk a piece at a time as it is sent
+        Log.log("Queued upload of '" + resultName.get() + "'");
+        transferManager.upload(frontEnd, file, resultName.get(), highReliability);
     }
 
-    private void saveFile(String suggestedName, byte[] data) {
-        // Get file
+    private File chooseSaveFile(String suggestedName) {
         FileChooser fc = new FileChooser();
         fc.setTitle("Save file");
         fc.setInitialDirectory(new File(BASE_DIR));
         fc.setInitialFileName(new File(suggestedName).getName());
-        File outFile = fc.showSaveDialog(getStage());
-
-        if (outFile == null) {
-            return;
-        }
-
-        // Make directory if it doesn't exist (for some reason)
-        // Write data out
-        //noinspection ResultOfMethodCallIgnored
-        outFile.getParentFile().mkdirs();
-        try (FileOutputStream stream = new FileOutputStream(outFile)) {
-            stream.write(data);
-            Log.log("File saved to disk");
-        } catch (IOException e) {
-            Log.log("Error writing file to disk");
-            Log.log(e.getMessage());
-        }
+        return fc.showSaveDialog(getStage());
     }
 
     private Stage getStage() {
@@ -387,41 +341,3 @@ public class ClientController {
 
     }
 }
-
-class Log {
-    private static ListView<String> list;
-
-    public static void init(ListView<String> list) {
-        Log.list = list;
-    }
-
-    public static void log(String msg) {
-        System.out.println(msg);
-        Platform.runLater(() -> {
-            list.getItems().add(msg);
-            list.scrollTo(list.getItems().size() - 1);
-        });
-    }
-}
-
-class DownloadedFile {
-    private byte[] data;
-    private boolean rmiError;
-
-    DownloadedFile(boolean rmiError, byte[] data) {
-        this.rmiError = rmiError;
-        this.data = data;
-    }
-
-    public byte[] getData() {
-        return data;
-    }
-
-    public boolean hadRMIError() {
-        return rmiError;
-    }
-
-    public boolean containsData() {
-        return data != null;
-    }
-}
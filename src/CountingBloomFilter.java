@@ -0,0 +1,140 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Server side version of the filter. Each position holds a counter rather than a bit so that files can be removed
+// The positions whose bit changed (a counter going from zero to non-zero or back) are kept for the last MAX_CHANGES
+// versions, so that a front end holding a recent version is only sent those positions rather than the whole filter
+class CountingBloomFilter {
+    private static final int MAX_CHANGES = 10000;
+
+    private final byte[] counters;
+    private final int numHashes;
+    private int numFiles = 0;
+
+    // Versions start from the clock so that a rebuilt filter (or restarted server) never reuses a version a front end
+    // already holds
+    private long version = System.currentTimeMillis() << 20;
+
+    // Positions whose bit changed in each version, oldest first. The last entry is for the current version
+    private final ArrayDeque<int[]> changes = new ArrayDeque<>();
+
+    CountingBloomFilter(int numBits, int numHashes) {
+        this.counters = new byte[numBits];
+        this.numHashes = numHashes;
+    }
+
+    synchronized void add(String filename) {
+        int[] flipped = new int[numHashes];
+        int numFlipped = 0;
+        for (int index : BloomFilter.indexes(filename, counters.length, numHashes)) {
+            // Saturated counters are never decremented, which keeps the filter safe at the cost of false positives
+            if (counters[index] != Byte.MAX_VALUE) {
+                if (counters[index] == 0) {
+                    flipped[numFlipped++] = index;
+                }
+                counters[index]++;
+            }
+        }
+        numFiles++;
+        recordChange(flipped, numFlipped);
+    }
+
+    synchronized void remove(String filename) {
+        int[] flipped = new int[numHashes];
+        int numFlipped = 0;
+        for (int index : BloomFilter.indexes(filename, counters.length, numHashes)) {
+            if (counters[index] != Byte.MAX_VALUE && counters[index] > 0) {
+                counters[index]--;
+                if (counters[index] == 0) {
+                    flipped[numFlipped++] = index;
+                }
+            }
+        }
+        numFiles--;
+        recordChange(flipped, numFlipped);
+    }
+
+    private void recordChange(int[] flipped, int numFlipped) {
+        version++;
+        changes.addLast(numFlipped == flipped.length ? flipped : Arrays.copyOf(flipped, numFlipped));
+        if (changes.size() > MAX_CHANGES) {
+            changes.removeFirst();
+        }
+    }
+
+    synchronized int size() {
+        return numFiles;
+    }
+
+    synchronized int capacity() {
+        return counters.length;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    // Returns what a front end holding knownVersion needs to bring its filter up to date: null if it already is, the
+    // positions that changed since if they are still kept (and smaller than the filter), otherwise the whole filter
+    synchronized FilterUpdate updateSince(long knownVersion) {
+        if (knownVersion == version) {
+            return null;
+        }
+
+        long missed = version - knownVersion;
+        if (knownVersion < 0 || missed < 0 || missed > changes.size()) {
+            return FilterUpdate.snapshot(snapshot());
+        }
+
+        // Only the current state of each changed position matters, however many times it changed
+        BitSet changed = new BitSet(counters.length);
+        int skip = changes.size() - (int) missed;
+        int i = 0;
+        for (int[] flipped : changes) {
+            if (i++ < skip) {
+                continue;
+            }
+            for (int index : flipped) {
+                changed.set(index);
+            }
+        }
+
+        // Each position costs an int, so past numBits / 32 positions the whole filter is smaller
+        if (changed.cardinality() > counters.length / 32) {
+            return FilterUpdate.snapshot(snapshot());
+        }
+
+        int numSet = 0;
+        for (int index = changed.nextSetBit(0); index >= 0; index = changed.nextSetBit(index + 1)) {
+            if (counters[index] != 0) {
+                numSet++;
+            }
+        }
+
+        int[] set = new int[numSet];
+        int[] cleared = new int[changed.cardinality() - numSet];
+        int nextSet = 0;
+        int nextCleared = 0;
+        for (int index = changed.nextSetBit(0); index >= 0; index = changed.nextSetBit(index + 1)) {
+            if (counters[index] != 0) {
+                set[nextSet++] = index;
+            } else {
+                cleared[nextCleared++] = index;
+            }
+        }
+
+        return FilterUpdate.delta(knownVersion, version, set, cleared);
+    }
+
+    // Returns a bit filter of the current contents
+    synchronized BloomFilter snapshot() {
+        BloomFilter filter = new BloomFilter(counters.length, numHashes, version);
+        for (int i = 0; i < counters.length; i++) {
+            if (counters[i] != 0) {
+                filter.setBit(i);
+            }
+        }
+        return filter;
+    }
+}
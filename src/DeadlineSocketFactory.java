@@ -0,0 +1,128 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.rmi.server.RMIClientSocketFactory;
+
+// Client socket factory that puts time limits on RMI calls
+// Servers are exported with this factory, so it is sent to front ends inside the server stubs. Before a call the
+// caller sets a deadline for the current thread; connecting and every read while waiting for the response are then
+// limited by it, so a hung server fails the call quickly instead of blocking for the default socket timeouts
+// Calls made without a deadline (eg. RMI's own housekeeping) behave as normal
+public class DeadlineSocketFactory implements RMIClientSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Connecting never takes longer than this, even without a deadline
+    private static final int CONNECT_TIMEOUT_MS = Shared.parsePropertyInteger("rmi.connectTimeoutMs", "Connect timeout must be a positive integer", 5000);
+
+    private static final ThreadLocal<Deadline> currentDeadline = new ThreadLocal<>();
+
+    // Time limits for a single call. A call fails once the total time has passed, or if no data arrives for idleMs
+    private static class Deadline {
+        final long expiresAtNanos;
+        final int idleMs;
+
+        Deadline(long expiresAtNanos, int idleMs) {
+            this.expiresAtNanos = expiresAtNanos;
+            this.idleMs = idleMs;
+        }
+
+        // Returns the socket timeout to use for the next read, or throws if the deadline has passed
+        int readTimeoutMs() throws SocketTimeoutException {
+            long remainingMs = (expiresAtNanos - System.nanoTime()) / 1000000;
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("Call deadline exceeded");
+            }
+            return (int) Math.min(Math.min(remainingMs, idleMs), Integer.MAX_VALUE);
+        }
+    }
+
+    // Limits calls made by this thread to totalMs overall (0 for no overall limit) and idleMs without receiving data
+    // (0 for no idle limit), until the deadline is cleared
+    public static void setDeadline(long totalMs, int idleMs) {
+        long expiresAt = totalMs > 0 ? System.nanoTime() + totalMs * 1000000 : Long.MAX_VALUE;
+        currentDeadline.set(new Deadline(expiresAt, idleMs > 0 ? idleMs : Integer.MAX_VALUE));
+    }
+
+    public static void clearDeadline() {
+        currentDeadline.remove();
+    }
+
+    // Returns true if a call failed because it ran past its deadline (or couldn't connect in time)
+    public static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        int connectTimeoutMs = CONNECT_TIMEOUT_MS;
+        Deadline deadline = currentDeadline.get();
+        if (deadline != null) {
+            connectTimeoutMs = Math.min(connectTimeoutMs, deadline.readTimeoutMs());
+        }
+
+        Socket socket = new DeadlineSocket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    // RMI reuses connections between calls, so instead of fixing the timeout when the socket is created it is set from
+    // the reading thread's deadline before every read
+    private static class DeadlineSocket extends Socket {
+        private InputStream inputStream;
+        private int currentTimeoutMs = 0;
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                inputStream = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        applyDeadline();
+                        return super.read();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        applyDeadline();
+                        return super.read(b, off, len);
+                    }
+                };
+            }
+            return inputStream;
+        }
+
+        private void applyDeadline() throws IOException {
+            Deadline deadline = currentDeadline.get();
+            int timeoutMs = deadline == null ? 0 : deadline.readTimeoutMs();
+            if (timeoutMs != currentTimeoutMs) {
+                setSoTimeout(timeoutMs);
+                currentTimeoutMs = timeoutMs;
+            }
+        }
+    }
+
+    // RMI shares connections between stubs whose factories are equal
+    @Override
+    public boolean equals(Object obj) {
+        return obj != null && obj.getClass() == getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+}
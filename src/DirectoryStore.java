@@ -0,0 +1,128 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Stores every file as a file of the same name inside the server's directory
+public class DirectoryStore implements FileStore {
+    private final String filesDir;
+    private final Durability durability;
+
+    public DirectoryStore(String filesDir, Durability durability) {
+        this.filesDir = filesDir;
+        this.durability = durability;
+    }
+
+    @Override
+    public boolean exists(String filename) {
+        return new File(filesDir + filename).exists();
+    }
+
+    @Override
+    public long size(String filename) {
+        File file = new File(filesDir + filename);
+        return file.exists() ? file.length() : -1;
+    }
+
+    @Override
+    public byte[] read(String filename) throws IOException {
+        File file = new File(filesDir + filename);
+        if (!file.exists()) {
+            return null;
+        }
+
+        return Files.readAllBytes(file.toPath());
+    }
+
+    @Override
+    public byte[] read(String filename, long offset, int length) throws IOException {
+        File file = new File(filesDir + filename);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int available = (int) Math.max(0, Math.min(length, channel.size() - offset));
+            ByteBuffer buffer = ByteBuffer.allocate(available);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1) {
+                    break;
+                }
+            }
+
+            // The file may have been truncated since we checked its size
+            return buffer.position() == available ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long write(String filename, ByteBuffer data) throws IOException {
+        // Convert filename to full path and make directories
+        File outFile = new File(filesDir + filename);
+        //noinspection ResultOfMethodCallIgnored
+        outFile.getParentFile().mkdirs();
+        boolean isNewFile = !outFile.exists();
+        long oldSize = outFile.length();
+
+        try (FileOutputStream stream = new FileOutputStream(outFile)) {
+            FileChannel channel = stream.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            durability.sync(channel, outFile.toPath(), isNewFile);
+        }
+
+        return isNewFile ? -1 : oldSize;
+    }
+
+    @Override
+    public long delete(String filename) throws IOException {
+        File file = new File(filesDir + filename);
+        if (!file.exists()) {
+            return -1;
+        }
+
+        long size = file.length();
+        if (!file.delete()) {
+            throw new IOException("Could not delete '" + file.toString() + "'");
+        }
+        return size;
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> listings = new ArrayList<>();
+
+        // Get listings by traversing through source directory
+        try (Stream<Path> paths = Files.walk(Paths.get(filesDir))) {
+            paths.filter(Files::isRegularFile)
+                    .forEach(path -> {
+                        String listing = path.toString().substring(filesDir.length());
+                        listings.add(listing);
+                    });
+        }
+
+        return listings;
+    }
+
+    @Override
+    public long bytesUsed() throws IOException {
+        try (Stream<Path> paths = Files.walk(Paths.get(filesDir))) {
+            return paths.filter(Files::isRegularFile)
+                    .mapToLong(path -> path.toFile().length())
+                    .sum();
+        }
+    }
+}
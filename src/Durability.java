@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides how written files are flushed to disk before an upload is acknowledged
+// NONE - leave it to the OS (fast, but an acknowledged upload can be lost on power failure)
+// FSYNC - sync every file (and its directory) as soon as it is written
+// GROUP - collect the files written by concurrent uploads and sync them together from one thread, so each file and
+//         directory is only synced once per batch and writers share the wait
+public class Durability {
+    public enum Policy { NONE, FSYNC, GROUP }
+
+    private final Policy policy;
+    private final int groupWindowMs;
+
+    // Files waiting to be synced by the group commit thread
+    private final List<PendingSync> pending = new ArrayList<>();
+
+    // Metrics
+    private final AtomicLong syncBatches = new AtomicLong();
+    private final AtomicLong syncFiles = new AtomicLong();
+    private final AtomicLong totalSyncNanos = new AtomicLong();
+    private final AtomicLong maxSyncNanos = new AtomicLong();
+
+    private static class PendingSync {
+        final FileChannel channel;
+        final Path directory;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        PendingSync(FileChannel channel, Path directory) {
+            this.channel = channel;
+            this.directory = directory;
+        }
+    }
+
+    public Durability(Policy policy, int groupWindowMs) {
+        this.policy = policy;
+        this.groupWindowMs = groupWindowMs;
+
+        if (policy == Policy.GROUP) {
+            Thread thread = new Thread(this::runGroupCommit, "group-commit");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Reads the policy from -Dserver.durability=none|fsync|group and the window from -Dserver.durability.windowMs
+    public static Durability fromProperties() {
+        String name = System.getProperty("server.durability", Policy.GROUP.name());
+        Policy policy;
+        try {
+            policy = Policy.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown durability policy '" + name + "', using " + Policy.GROUP);
+            policy = Policy.GROUP;
+        }
+
+        int windowMs = Shared.parsePropertyInteger("server.durability.windowMs", "Group commit window must be a positive integer", 2);
+        return new Durability(policy, windowMs);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // Blocks until the data written to the channel is durable (according to the policy)
+    // newFile should be true if the file was created, as the directory entry then needs syncing too
+    public void sync(FileChannel channel, Path file, boolean newFile) throws IOException {
+        Path directory = newFile ? file.toAbsolutePath().getParent() : null;
+
+        switch (policy) {
+            case NONE:
+                return;
+
+            case FSYNC:
+                long startTime = System.nanoTime();
+                channel.force(false);
+                if (directory != null) {
+                    syncDirectory(directory);
+                }
+                recordSync(1, System.nanoTime() - startTime);
+                return;
+
+            case GROUP:
+                PendingSync sync = new PendingSync(channel, directory);
+                synchronized (pending) {
+                    pending.add(sync);
+                    pending.notifyAll();
+                }
+
+                try {
+                    sync.result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for sync", e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Sync failed: " + e.getCause().getMessage(), e.getCause());
+                }
+        }
+    }
+
+    // Like sync, but the data is synced even under the NONE policy. Used for data that replaces something already on
+    // disk (eg. a file's new contents before they are renamed over the old ones, or records copied out of a segment
+    // before it is deleted), where a crash would otherwise lose both
+    public void syncRequired(FileChannel channel, Path file, boolean newFile) throws IOException {
+        if (policy != Policy.NONE) {
+            sync(channel, file, newFile);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        channel.force(false);
+        if (newFile) {
+            syncDirectory(file.toAbsolutePath().getParent());
+        }
+        recordSync(1, System.nanoTime() - startTime);
+    }
+
+    // Blocks until a change to a file's directory entry (the file being removed, or renamed into place) is durable
+    // (according to the policy), by syncing its directory
+    public void syncEntry(Path file) {
+        if (policy == Policy.NONE) {
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        syncDirectory(file.toAbsolutePath().getParent());
+        recordSync(1, System.nanoTime() - startTime);
+    }
+
+    private void runGroupCommit() {
+        while (true) {
+            List<PendingSync> batch;
+            try {
+                synchronized (pending) {
+                    while (pending.isEmpty()) {
+                        pending.wait();
+                    }
+                }
+
+                // Give other uploads a moment to join the batch
+                if (groupWindowMs > 0) {
+                    Thread.sleep(groupWindowMs);
+                }
+
+                synchronized (pending) {
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Anything unexpected fails this batch's uploads rather than the thread, which every later upload waits on
+            try {
+                syncBatch(batch);
+            } catch (RuntimeException | Error e) {
+                System.out.println("Group commit failed: " + e);
+                IOException error = new IOException("Group commit failed: " + e, e);
+                for (PendingSync sync : batch) {
+                    sync.result.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+    // Syncs a batch of files and completes their uploads
+    private void syncBatch(List<PendingSync> batch) {
+        // Each channel is synced once, even if several uploads appended to it (eg. a shared segment file)
+        long startTime = System.nanoTime();
+        Set<Path> directories = new LinkedHashSet<>();
+        Map<FileChannel, IOException> synced = new IdentityHashMap<>();
+        for (PendingSync sync : batch) {
+            if (!synced.containsKey(sync.channel)) {
+                try {
+                    sync.channel.force(false);
+                    synced.put(sync.channel, null);
+                } catch (IOException e) {
+                    synced.put(sync.channel, e);
+                }
+            }
+
+            IOException error = synced.get(sync.channel);
+            if (error != null) {
+                sync.result.completeExceptionally(error);
+            } else if (sync.directory != null) {
+                directories.add(sync.directory);
+            }
+        }
+
+        // Each directory is synced once for the whole batch
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+        recordSync(batch.size(), System.nanoTime() - startTime);
+
+        for (PendingSync sync : batch) {
+            sync.result.complete(null);
+        }
+    }
+
+    // Makes a new directory entry durable. Not every platform allows directories to be opened, in which case the
+    // file sync is all we can do
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void recordSync(int files, long nanos) {
+        syncBatches.incrementAndGet();
+        syncFiles.addAndGet(files);
+        totalSyncNanos.addAndGet(nanos);
+        maxSyncNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // Number of sync calls (one per batch when using group commit)
+    public long getSyncBatches() {
+        return syncBatches.get();
+    }
+
+    public long getSyncFiles() {
+        return syncFiles.get();
+    }
+
+    public double getAverageSyncMillis() {
+        long batches = syncBatches.get();
+        return batches == 0 ? 0 : totalSyncNanos.get() / 1e6 / batches;
+    }
+
+    public double getMaxSyncMillis() {
+        return maxSyncNanos.get() / 1e6;
+    }
+}
@@ -0,0 +1,250 @@
+import java.util.*;
+
+// Schedules a front end's requests so that bulk transfers can't starve metadata operations or each other
+// Metadata operations (list, exists, size, delete) have their own lane, admitted by -Dfrontend.admission.metadata.*,
+// so they never queue behind transfers. Transfers share -Dfrontend.fair.bulkSlots slots (default 16), handed out by
+// start-time fair queuing: each client is charged for the bytes it moves divided by its weight
+// (-Dfrontend.fair.weight.<client host>, default 1), and a free slot goes to the waiting request whose client has been
+// charged least. With -Dfrontend.fair.clientKBps each client's transfers are also limited to that rate by a token
+// bucket holding one second's worth. Clients are told by their host, as reported by RMI
+public class FairScheduler {
+    public static final int METADATA = 0;
+    public static final int BULK = 1;
+
+    // Every transfer is charged at least this much, so that many tiny transfers aren't free
+    private static final long MIN_COST = 64 * 1024;
+
+    // Clients that have been idle this long are forgotten
+    private static final long CLIENT_IDLE_MS = 60000;
+
+    private final AdmissionControl metadataAdmission;
+    private final AdmissionControl bulkAdmission;
+    private final int bulkSlots;
+    private final int queueMs;
+    private final long clientBytesPerSecond;
+
+    private final Map<String, Client> clients = new HashMap<>();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private int activeBulk = 0;
+    private double virtualTime = 0;
+    private long nextSeq = 0;
+
+    private class Client {
+        final double weight;
+        final TokenBucket bucket;
+        double lastFinish = 0;
+        long lastUsed = System.currentTimeMillis();
+
+        Client(double weight) {
+            this.weight = weight;
+            this.bucket = clientBytesPerSecond > 0 ? new TokenBucket(clientBytesPerSecond) : null;
+        }
+    }
+
+    // A transfer waiting for a slot. Ordered by virtual start time, then arrival
+    private static class Waiter implements Comparable<Waiter> {
+        final double start;
+        final long seq;
+        boolean granted = false;
+
+        Waiter(double start, long seq) {
+            this.start = start;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int result = Double.compare(start, other.start);
+            return result != 0 ? result : Long.compare(seq, other.seq);
+        }
+    }
+
+    // Limits a client to a number of bytes per second. A transfer may take the bucket below empty, in which case the
+    // next one waits until it has refilled
+    private static class TokenBucket {
+        private final long bytesPerSecond;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.tokens = bytesPerSecond;
+        }
+
+        // Takes the bytes and returns how long to wait before using them
+        synchronized long take(long bytes) {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) / 1e9 * bytesPerSecond);
+            lastRefill = now;
+
+            long waitMs = tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+            tokens -= bytes;
+            return waitMs;
+        }
+    }
+
+    // Releases the slot and the admission permit taken by an operation
+    public class Slot implements AutoCloseable {
+        private final Client client;
+        private final AdmissionControl.Permit permit;
+        private final boolean bulk;
+        private boolean released = false;
+
+        private Slot(Client client, AdmissionControl.Permit permit, boolean bulk) {
+            this.client = client;
+            this.permit = permit;
+            this.bulk = bulk;
+        }
+
+        // Charges the client for bytes that weren't known when the operation was admitted (eg. a download, whose size
+        // isn't known until it arrives), and counts them as in flight until the slot is released
+        public void charge(long bytes) {
+            if (!bulk || bytes <= 0) {
+                return;
+            }
+
+            permit.hold(bytes);
+            synchronized (FairScheduler.this) {
+                client.lastFinish += bytes / client.weight;
+            }
+            if (client.bucket != null) {
+                client.bucket.take(bytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            permit.close();
+            if (bulk) {
+                releaseBulkSlot();
+            }
+        }
+    }
+
+    public FairScheduler(AdmissionControl metadataAdmission, AdmissionControl bulkAdmission, int bulkSlots, int queueMs, long clientBytesPerSecond) {
+        this.metadataAdmission = metadataAdmission;
+        this.bulkAdmission = bulkAdmission;
+        this.bulkSlots = Math.max(1, bulkSlots);
+        this.queueMs = queueMs;
+        this.clientBytesPerSecond = clientBytesPerSecond;
+    }
+
+    public static FairScheduler fromProperties() {
+        AdmissionControl metadataAdmission = AdmissionControl.fromProperties("Front end", "frontend.admission.metadata");
+        AdmissionControl bulkAdmission = AdmissionControl.fromProperties("Front end", "frontend.admission");
+        int bulkSlots = Shared.parsePropertyInteger("frontend.fair.bulkSlots", "Number of bulk slots must be a positive integer", 16);
+        int queueMs = Shared.parsePropertyInteger("frontend.fair.queueMs", "Queue time must be a positive integer", 10000);
+        int clientKBps = Shared.parsePropertyInteger("frontend.fair.clientKBps", "Client rate limit must be a positive integer", 0);
+        return new FairScheduler(metadataAdmission, bulkAdmission, bulkSlots, queueMs, Math.max(0, clientKBps) * 1024L);
+    }
+
+    // Admits an operation in the given lane that will hold the given number of payload bytes
+    // Transfers wait for the client's rate limit and then for a fair share of the slots, and are rejected with a
+    // ServerBusyException if no slot is free within queueMs. Callers admit transfers before handing them to a worker,
+    // so that the waiting is done on the caller's own thread rather than holding a worker
+    public Slot admit(int lane, long bytes) throws ServerBusyException {
+        Client client = getClient(WorkerPool.getClientHost());
+
+        if (lane == METADATA) {
+            return new Slot(client, metadataAdmission.admit(bytes), false);
+        }
+
+        if (client.bucket != null) {
+            long waitMs = client.bucket.take(bytes);
+            if (waitMs > 0) {
+                try {
+                    Thread.sleep(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ServerBusyException("Front end is busy, retry later: interrupted");
+                }
+            }
+        }
+
+        acquireBulkSlot(client, bytes);
+        try {
+            return new Slot(client, bulkAdmission.admit(bytes), true);
+        } catch (ServerBusyException e) {
+            releaseBulkSlot();
+            refund(client, bytes);
+            throw e;
+        }
+    }
+
+    // Charges the client for the transfer up front, and refunds the charge if it is turned away, so that a client
+    // isn't pushed back in the queue for transfers that never ran
+    private synchronized void acquireBulkSlot(Client client, long bytes) throws ServerBusyException {
+        double start = Math.max(virtualTime, client.lastFinish);
+        client.lastFinish = start + cost(client, bytes);
+
+        if (activeBulk < bulkSlots && waiters.isEmpty()) {
+            activeBulk++;
+            virtualTime = start;
+            return;
+        }
+
+        Waiter waiter = new Waiter(start, nextSeq++);
+        waiters.add(waiter);
+        long deadline = System.currentTimeMillis() + queueMs;
+        try {
+            while (!waiter.granted) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    waiters.remove(waiter);
+                    refund(client, bytes);
+                    throw new ServerBusyException("Front end is busy, retry later: all " + bulkSlots + " transfer slots are in use");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            if (!waiter.granted) {
+                waiters.remove(waiter);
+                refund(client, bytes);
+                Thread.currentThread().interrupt();
+                throw new ServerBusyException("Front end is busy, retry later: interrupted");
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static double cost(Client client, long bytes) {
+        return Math.max(bytes, MIN_COST) / client.weight;
+    }
+
+    private synchronized void refund(Client client, long bytes) {
+        client.lastFinish -= cost(client, bytes);
+    }
+
+    private synchronized void releaseBulkSlot() {
+        activeBulk--;
+        while (activeBulk < bulkSlots && !waiters.isEmpty()) {
+            Waiter next = waiters.poll();
+            next.granted = true;
+            activeBulk++;
+            virtualTime = next.start;
+        }
+        notifyAll();
+    }
+
+    private synchronized Client getClient(String host) {
+        long now = System.currentTimeMillis();
+        Client client = clients.get(host);
+        if (client == null) {
+            clients.values().removeIf(idle -> now - idle.lastUsed > CLIENT_IDLE_MS);
+
+            int weight = Shared.parsePropertyInteger("frontend.fair.weight." + host, "Client weight must be a positive integer", 1);
+            client = new Client(Math.max(1, weight));
+            clients.put(host, client);
+        }
+        client.lastUsed = now;
+        return client;
+    }
+
+    public int getActiveOperations() {
+        return metadataAdmission.getActiveOperations() + bulkAdmission.getActiveOperations();
+    }
+}
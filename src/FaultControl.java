@@ -0,0 +1,18 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Injects faults into a file server for failover testing (see ChaosBench)
+// Only bound (as FaultControl<ID>) when the server is started with -Dserver.faults=true
+public interface FaultControl extends Remote {
+    // Delays every storage operation by the given time
+    void setLatency(int ms) throws RemoteException;
+
+    // Blocks every storage operation until unstalled, as if the disk had hung
+    void setStalled(boolean stalled) throws RemoteException;
+
+    // Fails every write as if the disk were full
+    void setDiskFull(boolean full) throws RemoteException;
+
+    // Removes all faults
+    void clear() throws RemoteException;
+}
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+// Faults injected into a server's storage, controlled remotely through FaultControl
+// Faults act on the file store rather than the RMI calls, so calls that don't touch the disk (stats, filters and the
+// change feed) keep working, as they would on a real server with a failing disk
+public class FaultInjector extends UnicastRemoteObject implements FaultControl {
+    private static final long serialVersionUID = 1L;
+
+    private volatile int latencyMs = 0;
+    private volatile boolean diskFull = false;
+    private boolean stalled = false;
+
+    public FaultInjector() throws RemoteException {
+        super();
+    }
+
+    // Returns an injector if faults are enabled with -Dserver.faults=true, otherwise null
+    public static FaultInjector fromProperties() throws RemoteException {
+        return Boolean.getBoolean("server.faults") ? new FaultInjector() : null;
+    }
+
+    @Override
+    public void setLatency(int ms) {
+        latencyMs = Math.max(0, ms);
+        log("Injected latency of " + latencyMs + "ms");
+    }
+
+    @Override
+    public synchronized void setStalled(boolean stalled) {
+        this.stalled = stalled;
+        notifyAll();
+        log(stalled ? "Stalled storage" : "Unstalled storage");
+    }
+
+    @Override
+    public void setDiskFull(boolean full) {
+        diskFull = full;
+        log(full ? "Disk is now full" : "Disk is no longer full");
+    }
+
+    @Override
+    public void clear() {
+        setLatency(0);
+        setDiskFull(false);
+        setStalled(false);
+    }
+
+    private void beforeOperation() throws IOException {
+        int latency = latencyMs;
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            synchronized (this) {
+                while (stalled) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stalled");
+        }
+    }
+
+    private void beforeWrite() throws IOException {
+        beforeOperation();
+        if (diskFull) {
+            throw new IOException("No space left on device (injected)");
+        }
+    }
+
+    // Wraps a file store so that the injected faults apply to it
+    public FileStore wrap(FileStore store) {
+        return new FileStore() {
+            @Override
+            public boolean exists(String filename) {
+                try {
+                    beforeOperation();
+                } catch (IOException e) {
+                    return false;
+                }
+                return store.exists(filename);
+            }
+
+            @Override
+            public long size(String filename) {
+                try {
+                    beforeOperation();
+                } catch (IOException e) {
+                    return -1;
+                }
+                return store.size(filename);
+            }
+
+            @Override
+            public byte[] read(String filename) throws IOException {
+                beforeOperation();
+                return store.read(filename);
+            }
+
+            @Override
+            public byte[] read(String filename, long offset, int length) throws IOException {
+                beforeOperation();
+                return store.read(filename, offset, length);
+            }
+
+            @Override
+            public long write(String filename, ByteBuffer data) throws IOException {
+                beforeWrite();
+                return store.write(filename, data);
+            }
+
+            @Override
+            public long delete(String filename) throws IOException {
+                beforeOperation();
+                return store.delete(filename);
+            }
+
+            @Override
+            public List<String> list() throws IOException {
+                beforeOperation();
+                return store.list();
+            }
+
+            @Override
+            public long bytesUsed() throws IOException {
+                return store.bytesUsed();
+            }
+        };
+    }
+
+    private void log(String msg) {
+        System.out.println(msg);
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.Serializable;
+
+// A piece of a file downloaded with FrontEndInterface.downloadPiece, along with the copy of the file it was read from
+// Passing the copy back with the next piece makes sure every piece of a download comes from the same upload
+public class FilePiece implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Payload data;
+    private final String copy;
+    private final long fileSize;
+
+    FilePiece(Payload data, String copy, long fileSize) {
+        this.data = data;
+        this.copy = copy;
+        this.fileSize = fileSize;
+    }
+
+    public Payload getData() {
+        return data;
+    }
+
+    public String getCopy() {
+        return copy;
+    }
+
+    // The size of the copy the piece was read from
+    public long getFileSize() {
+        return fileSize;
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Storage engine used by a file server to keep its files on disk
+public interface FileStore {
+    // Returns true if the file is stored
+    boolean exists(String filename);
+
+    // Returns the size of the file in bytes, or -1 if it is not stored
+    long size(String filename);
+
+    // Returns the contents of the file, or null if it is not stored
+    byte[] read(String filename) throws IOException;
+
+    // Returns up to length bytes of the file starting at offset (fewer at the end of the file), or null if it is not
+    // stored
+    byte[] read(String filename, long offset, int length) throws IOException;
+
+    // Stores the file (the remaining bytes of data), replacing any existing contents. The data is durable (according
+    // to the server's durability policy) when this returns. The buffer's position may be moved
+    // Returns the size of the file that was replaced, or -1 if the file is new
+    long write(String filename, ByteBuffer data) throws IOException;
+
+    // Removes the file
+    // Returns the size of the file that was removed, or -1 if it is not stored
+    long delete(String filename) throws IOException;
+
+    // Returns the names of all stored files
+    List<String> list() throws IOException;
+
+    // Returns the total size of all stored files
+    long bytesUsed() throws IOException;
+}
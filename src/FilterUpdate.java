@@ -0,0 +1,51 @@
+import java.io.Serializable;
+
+// What a server sends a front end to bring its copy of the server's filter up to date
+// Either the whole filter, or the positions that have been set and cleared between the front end's version and the
+// server's current one
+public class FilterUpdate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final BloomFilter snapshot;
+    private final long baseVersion;
+    private final long version;
+    private final int[] set;
+    private final int[] cleared;
+
+    private FilterUpdate(BloomFilter snapshot, long baseVersion, long version, int[] set, int[] cleared) {
+        this.snapshot = snapshot;
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.set = set;
+        this.cleared = cleared;
+    }
+
+    static FilterUpdate snapshot(BloomFilter filter) {
+        return new FilterUpdate(filter, -1, filter.getVersion(), new int[0], new int[0]);
+    }
+
+    static FilterUpdate delta(long baseVersion, long version, int[] set, int[] cleared) {
+        return new FilterUpdate(null, baseVersion, version, set, cleared);
+    }
+
+    // The whole filter, or null if this update only holds changes
+    public BloomFilter getSnapshot() {
+        return snapshot;
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int[] getSet() {
+        return set;
+    }
+
+    public int[] getCleared() {
+        return cleared;
+    }
+}
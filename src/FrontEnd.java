@@ -1,12 +1,20 @@
 import javafx.util.Pair;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
 
+// Admission permits and slots are held by try-with-resources blocks that never refer to them
+@SuppressWarnings("try")
 public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
     // Constants
     private static final String DEFAULT_RMI_HOSTNAME = "localhost";
@@ -16,11 +24,87 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
     private static final String FRONTEND_RMI_NAME = "FrontEnd";
     private static final String SERVER_RMI_NAME = "FileServer";
 
+    // Erasure coded files are stored as one file per shard, named <filename>~ec<index>
+    private static final String SHARD_SUFFIX = "~ec";
+    private static final Pattern SHARD_PATTERN = Pattern.compile(Pattern.quote(SHARD_SUFFIX) + "\\d+$");
+
     // Object variables
+    // Front ends share no state with each other. Server membership comes from the registry and placement is decided from
+    // what the servers report, so any number of front ends can share the same registry and see the same system
+    // What a front end does keep (filters, its copy of the listings, latencies) is rebuilt after a restart, except for
+    // chunked uploads in progress, which are lost
     private Registry register;
-    private List<ServerInterface> fileServers = new ArrayList<>();
+    private List<ServerInterface> fileServers = Collections.synchronizedList(new ArrayList<>());
     private Random random = new Random();
 
+    // Used for high reliability uploads if set, instead of storing a full copy on every server
+    // Enabled with -Dfrontend.erasure.data=k (and optionally -Dfrontend.erasure.parity=m)
+    private ReedSolomon erasureCoding;
+
+    // Limits concurrent requests and the bytes they hold, turning clients away when overloaded. Metadata operations and
+    // transfers are admitted separately, and transfers are shared fairly between clients
+    private FairScheduler scheduler = FairScheduler.fromProperties();
+
+    // Uploads and downloads are run by a bounded pool of workers, which turns calls away once it and its queue are full
+    private WorkerPool workers = WorkerPool.fromProperties("Front end", "frontend");
+
+    // Records every call and the server calls it makes to a trace file, if enabled with -Dfrontend.trace.file
+    private TraceRecorder trace = TraceRecorder.fromProperties();
+
+    // Deadlines on server calls, so that a hung server fails calls quickly and they move on to another server
+    // A server that misses a deadline isn't contacted again for deadlineBackoffMs
+    private CallDeadlines deadlines = CallDeadlines.fromProperties();
+    private final long[] suspendedUntil = new long[MAX_SERVERS];
+    private int deadlineBackoffMs;
+
+    // When each server was last disconnected and reconnected (ms since epoch), for measuring failover
+    private final AtomicLongArray disconnectTimes = new AtomicLongArray(MAX_SERVERS);
+    private final AtomicLongArray reconnectTimes = new AtomicLongArray(MAX_SERVERS);
+
+    // Runs server calls that are made in parallel (shards and hedged downloads)
+    private ExecutorService requestExecutor = trace == null ? Executors.newCachedThreadPool() : trace.newExecutor();
+
+    // Hedged downloads. If a server has not answered within the given percentile of recent download times, the same
+    // request is sent to another server and whichever answers first is used. At most hedgeBudget percent of downloads
+    // are hedged, so a slow system isn't made slower by doubling its load
+    private LatencyTracker downloadLatency = new LatencyTracker(1000);
+    private AtomicLong numDownloads = new AtomicLong();
+    private AtomicLong numHedgedDownloads = new AtomicLong();
+    private int hedgePercentile;
+    private int hedgeBudget;
+
+    // Only files up to hedgeMaxBytes are hedged, and only their download times are recorded. A large file always takes
+    // longer than most downloads, so it would otherwise always be hedged and pulled from two servers
+    private long hedgeMaxBytes;
+
+    // Bloom filters of the files on each server, so that definite misses are answered without the server looking for
+    // the file. A filter is refreshed when it is older than filterRefreshMs, and files this front end uploads are added
+    // straight away. A file that our copy rules out may have been uploaded through another front end since, so the
+    // filter's latest changes are always fetched before a miss is believed
+    private final BloomFilter[] serverFilters = new BloomFilter[MAX_SERVERS];
+    private final long[] filterRefreshTimes = new long[MAX_SERVERS];
+    private int filterRefreshMs;
+
+    // Copies of the files on each server, kept up to date from the servers' change feeds, which answer listings and
+    // existence checks without asking the servers
+    private final NamespaceView namespace = new NamespaceView(MAX_SERVERS);
+
+    // Uploads being sent in pieces, by upload ID. Uploads left idle for longer than uploadTimeoutMs are abandoned
+    private final Map<String, UploadSession> uploadSessions = new ConcurrentHashMap<>();
+    private int uploadTimeoutMs;
+
+    // A single call can send at most maxCallBytes, larger files have to be sent in pieces. Uploads being sent in pieces
+    // can add up to at most maxPendingBytes, new ones are turned away as busy until others finish
+    private long maxCallBytes;
+    private long maxPendingBytes;
+
+    // Upload placement. Servers are ranked by a weighted score of bytes used, file count and active operations,
+    // and servers whose disk would be fuller than the high water mark (percent) after the upload are not used
+    private int bytesWeight;
+    private int filesWeight;
+    private int loadWeight;
+    private int highWaterMark;
+
     public static void main(String[] args) {
         // Read arguments
         String hostname;
@@ -32,16 +116,24 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
 
         int port = Shared.parseCommandLineInteger(args, 1, "Port number must be a positive integer", DEFAULT_RMI_PORT);
 
+        // Multiple front ends can run side by side, each is bound with its own ID (eg. FrontEnd1, FrontEnd2)
+        // If no ID is given then we bind as the plain name so that older clients can still find us
+        int frontEndID = Shared.parseCommandLineInteger(args, 2, "Front end ID must be a positive integer", -1);
+        String rmiName = FRONTEND_RMI_NAME;
+        if (frontEndID != -1) {
+            rmiName += frontEndID;
+        }
+
         // Initialise front end
-        System.out.println("Initialising front end at " + hostname + ":" + port);
+        System.out.println("Initialising front end '" + rmiName + "' at " + hostname + ":" + port);
 
         try {
             FrontEnd obj = new FrontEnd(hostname, port);
 
             // System.out.println("Detected Local IP: " + InetAddress.getLocalHost().toString());
             // Bind the remote object's stub in the registry
-            Registry register = LocateRegistry.getRegistry(1099);
-            register.rebind(FRONTEND_RMI_NAME, obj);
+            Registry register = LocateRegistry.getRegistry(hostname, port);
+            register.rebind(rmiName, obj);
 
             System.out.println("Server ready");
         } catch (Exception e) {
@@ -50,15 +142,79 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
         }
     }
 
-    private FrontEnd(String hostname, int port) throws RemoteException {
+    FrontEnd(String hostname, int port) throws RemoteException {
         log("Retrieving registry and file server stubs");
 
-        // Initialize the registry
-        register = LocateRegistry.getRegistry(hostname, port);
+        // Initialize the registry. Lookups go through the deadline factory so that an unresponsive registry can't
+        // block them
+        register = LocateRegistry.getRegistry(hostname, port, new DeadlineSocketFactory());
 
-        // Attempt to initialize servers
+        deadlineBackoffMs = Shared.parsePropertyInteger("frontend.deadline.backoffMs", "Deadline backoff must be a positive integer", 5000);
+
+        // Attempt to initialize servers. They are looked up in parallel, so startup takes as long as the slowest lookup
+        // rather than the sum of them, and a lookup that hasn't finished in time leaves the server to be retried later
+        List<Future<ServerInterface>> lookups = new ArrayList<>();
         for (int i = 1; i <= MAX_SERVERS; i++) {
-            fileServers.add(getServerStub(i));
+            int id = i;
+            lookups.add(requestExecutor.submit(() -> getServerStub(id)));
+        }
+
+        long lookupDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlines.getShortMs() * 2L);
+        for (int i = 0; i < MAX_SERVERS; i++) {
+            Future<ServerInterface> lookup = lookups.get(i);
+            try {
+                fileServers.add(lookup.get(Math.max(0, lookupDeadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException | ExecutionException e) {
+                log("Timed out retrieving file server " + (i + 1) + " stub");
+                lookup.cancel(true);
+                fileServers.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fileServers.add(null);
+            }
+        }
+
+        filterRefreshMs = Shared.parsePropertyInteger("frontend.filter.refreshMs", "Filter refresh interval must be a positive integer", 1000);
+
+        bytesWeight = Shared.parsePropertyInteger("frontend.placement.bytesWeight", "Placement weights must be positive integers", 2);
+        filesWeight = Shared.parsePropertyInteger("frontend.placement.filesWeight", "Placement weights must be positive integers", 1);
+        loadWeight = Shared.parsePropertyInteger("frontend.placement.loadWeight", "Placement weights must be positive integers", 1);
+        highWaterMark = Shared.parsePropertyInteger("frontend.placement.highWaterMark", "High water mark must be a percentage", 90);
+
+        uploadTimeoutMs = Shared.parsePropertyInteger("frontend.upload.timeoutMs", "Upload timeout must be a positive integer", 60000);
+        maxCallBytes = Math.max(1, Shared.parsePropertyInteger("frontend.upload.maxCallMB", "Upload call limit must be a positive integer", 64)) * 1024L * 1024;
+        maxPendingBytes = Math.max(1, Shared.parsePropertyInteger("frontend.upload.maxPendingMB", "Pending upload limit must be a positive integer", 4096)) * 1024L * 1024;
+
+        hedgePercentile = Shared.parsePropertyInteger("frontend.hedge.percentile", "Hedge percentile must be a positive integer", 95);
+        hedgeBudget = Shared.parsePropertyInteger("frontend.hedge.budgetPercent", "Hedge budget must be a positive integer", 5);
+        hedgeMaxBytes = Math.max(0, Shared.parsePropertyInteger("frontend.hedge.maxKB", "Hedge size limit must be a positive integer", 1024)) * 1024L;
+
+        // Read high reliability mode
+        int dataShards = Shared.parsePropertyInteger("frontend.erasure.data", "Number of data shards must be a positive integer", 0);
+        int parityShards = Shared.parsePropertyInteger("frontend.erasure.parity", "Number of parity shards must be a positive integer", 1);
+        if (dataShards > 0) {
+            erasureCoding = new ReedSolomon(dataShards, parityShards);
+            log("High reliability uploads will use erasure coding with " + dataShards + " data and " + parityShards + " parity shards");
+
+            if (erasureCoding.getTotalShards() > MAX_SERVERS) {
+                log("Warning: there are more shards than servers, so some servers will hold several shards of the same file");
+            }
+        }
+
+        Thread uploadExpiry = new Thread(this::expireUploadsPeriodically, "upload-expiry");
+        uploadExpiry.setDaemon(true);
+        uploadExpiry.start();
+
+        // Only one front end should move files around, so the rebalancer is off unless an interval is given
+        int rebalanceIntervalMs = Shared.parsePropertyInteger("frontend.rebalance.intervalMs", "Rebalance interval must be a positive integer", 0);
+        if (rebalanceIntervalMs > 0) {
+            new Rebalancer(this, rebalanceIntervalMs).start();
+        }
+
+        // Payload pool usage and garbage collections are logged every statsMs, unless it is 0
+        int payloadStatsMs = Shared.parsePropertyInteger("frontend.payload.statsMs", "Stats interval must be a positive integer", 60000);
+        if (payloadStatsMs > 0) {
+            new PayloadStats(payloadStatsMs).start();
         }
 
         log("Front End initialised");
@@ -68,33 +224,231 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
     // Returns the stub if successful, otherwise null
     private ServerInterface getServerStub(int id) {
         log("Retrieving stub for server " + id);
+        DeadlineSocketFactory.setDeadline(deadlines.getShortMs(), 0);
         try {
-            ServerInterface stub = (ServerInterface) register.lookup(SERVER_RMI_NAME + id);
+            ServerInterface stub = deadlines.wrap((ServerInterface) register.lookup(SERVER_RMI_NAME + id));
             log("Retrieved stub for server " + id);
-            return stub;
+            return trace == null ? stub : trace.wrap(id - 1, stub);
         } catch (RemoteException | NotBoundException e) {
             log("Could not retrieve file server " + id + " stub");
             return null;
+        } finally {
+            DeadlineSocketFactory.clearDeadline();
         }
     }
 
-    // If a server is null then attempts to reconnect to it
+    // If a server is null then attempts to reconnect to it, unless it recently missed a deadline
     private void checkServer(int id) {
         ServerInterface server = fileServers.get(id);
 
         if (server == null) {
+            synchronized (suspendedUntil) {
+                if (System.currentTimeMillis() < suspendedUntil[id]) {
+                    return;
+                }
+            }
+
             log("Server " + (id + 1) + " is not connected, attempting to reconnect");
-            fileServers.set(id, getServerStub(id + 1));
+            ServerInterface stub = getServerStub(id + 1);
+            fileServers.set(id, stub);
+            if (stub != null) {
+                reconnectTimes.set(id, System.currentTimeMillis());
+            }
         }
     }
 
     private void disconnectServer(int id, RemoteException e) {
         log(e.getMessage());
+
+        // A busy server is still running, the request just goes to the next server
+        if (e instanceof ServerBusyException) {
+            log("Server " + (id + 1) + " is busy, not disconnecting");
+            return;
+        }
+
         log("Disconnected server " + (id + 1));
 
+        // A server that hangs would otherwise be reconnected and time out again on every request
+        if (DeadlineSocketFactory.isTimeout(e)) {
+            log("Server " + (id + 1) + " missed its deadline, not using it for " + deadlineBackoffMs + "ms");
+            synchronized (suspendedUntil) {
+                suspendedUntil[id] = System.currentTimeMillis() + deadlineBackoffMs;
+            }
+        }
+
         // Remove entry from the register. Disabled for now, in case file server is still running succesfully and error was one that was not expected
         // try { register.unbind(SERVER_RMI_NAME + (id + 1)); } catch (RemoteException | NotBoundException ignored) {}
         fileServers.set(id, null);
+        namespace.disconnect(id);
+        disconnectTimes.set(id, System.currentTimeMillis());
+
+        // The server may come back with different files
+        synchronized (serverFilters) {
+            serverFilters[id] = null;
+        }
+    }
+
+    // Returns false if the server definitely does not contain the file (or the server could not be reached)
+    // A file found in our copy of the server's files (while its change feed is live) or in a recent copy of its filter
+    // is answered straight away. A miss may be a file just uploaded through another front end, whose change hasn't
+    // reached us yet, so it is only believed once the filter's latest changes have been fetched from the server
+    private boolean mightContain(int id, String filename) {
+        ServerInterface server = fileServers.get(id);
+        if (server == null) {
+            return false;
+        }
+        if (namespace.isLive(id) && namespace.contains(id, filename)) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        BloomFilter filter;
+        synchronized (serverFilters) {
+            filter = serverFilters[id];
+            if (filter != null && now - filterRefreshTimes[id] < filterRefreshMs && filter.mightContain(filename)) {
+                return true;
+            }
+        }
+
+        // Nothing is sent back if our filter is still current, and only the changed positions if it is a little behind,
+        // so polling is cheap
+        try {
+            long knownVersion = filter == null ? -1 : filter.getVersion();
+            FilterUpdate update = server.getFilter(knownVersion);
+            if (update != null && update.getSnapshot() == null && (filter == null || !filter.apply(update))) {
+                // The changes don't fit our copy (it was replaced meanwhile), so start again from the whole filter
+                update = server.getFilter(-1);
+            }
+
+            synchronized (serverFilters) {
+                if (update != null && update.getSnapshot() != null) {
+                    serverFilters[id] = update.getSnapshot();
+                    filter = update.getSnapshot();
+                }
+                filterRefreshTimes[id] = now;
+            }
+        } catch (RemoteException e) {
+            // Leave it to the call itself if the server is still connected (eg. it is only busy)
+            disconnectServer(id, e);
+            return fileServers.get(id) != null;
+        }
+
+        return filter == null || filter.mightContain(filename);
+    }
+
+    // Adds a file we uploaded to our copy of the server's filter, so that it is never missed before the next refresh
+    // A filter can only give false positives, so this is safe even if the file has been deleted again since
+    private void addToFilter(int id, String filename) {
+        synchronized (serverFilters) {
+            if (serverFilters[id] != null) {
+                serverFilters[id].add(filename);
+            }
+        }
+    }
+
+    // Returns true if our copy of the server's files is up to date, subscribing to its changes first if needed
+    // Returns false if the server can't be subscribed to, in which case it has to be asked directly. The server is only
+    // disconnected here if it missed its deadline, as asking it directly would just wait out another one. Otherwise
+    // the direct call decides
+    private boolean hasNamespace(int id, ServerInterface server) {
+        if (namespace.isLive(id)) {
+            return true;
+        }
+
+        try {
+            namespace.subscribe(id, server);
+            return true;
+        } catch (RemoteException e) {
+            log("Could not subscribe to changes on server " + (id + 1) + ", asking it directly. " + e.getMessage());
+            if (DeadlineSocketFactory.isTimeout(e)) {
+                disconnectServer(id, e);
+            }
+            return false;
+        }
+    }
+
+    // Accessors used by the rebalancer, which shares this front end's server connections and filters
+
+    int getServerCount() {
+        return MAX_SERVERS;
+    }
+
+    // Returns the server's stub, reconnecting if needed. Returns null if the server is not available
+    ServerInterface getServer(int id) {
+        checkServer(id);
+        return fileServers.get(id);
+    }
+
+    void reportServerError(int id, RemoteException e) {
+        disconnectServer(id, e);
+    }
+
+    void reportFileCopied(int id, String filename) {
+        addToFilter(id, filename);
+    }
+
+    int getFilterRefreshMs() {
+        return filterRefreshMs;
+    }
+
+    // Times (ms since epoch, 0 if never) that a server was last disconnected after an error and reconnected, used by
+    // ChaosBench to measure how quickly failures are noticed and recovered from
+    long getLastDisconnectTime(int id) {
+        return disconnectTimes.get(id);
+    }
+
+    long getLastReconnectTime(int id) {
+        return reconnectTimes.get(id);
+    }
+
+    // Stops receiving changes from the servers, so that a front end that is shut down can be garbage collected
+    void stopChangeFeeds() {
+        namespace.close();
+    }
+
+    // Stops tracing and writes out any buffered records, so that the trace can be read while this JVM keeps running
+    void closeTrace() {
+        if (trace != null) {
+            trace.close();
+        }
+    }
+
+    // Returns the name of the file that a listing belongs to (listings of shards include the shard suffix)
+    static String getFileName(String listing) {
+        return SHARD_PATTERN.matcher(listing).replaceFirst("");
+    }
+
+    // Runs a client call, recording it to the trace file if tracing is enabled
+    // Calls are traced as soon as they arrive, before they are admitted or given a worker, so calls turned away as busy
+    // are recorded too
+    private <T> T traced(int op, int flags, String filename, long bytes, TraceRecorder.Call<T> call, TraceRecorder.Success<T> success) throws ServerBusyException {
+        return traced(op, flags, filename, bytes, 0, call, success);
+    }
+
+    private <T> T traced(int op, int flags, String filename, long requestBytes, long responseBytes, TraceRecorder.Call<T> call, TraceRecorder.Success<T> success) throws ServerBusyException {
+        if (trace == null) {
+            return call.call();
+        }
+        return trace.record(op, flags, filename, requestBytes, responseBytes, call, success);
+    }
+
+    // Runs part of a client call on a worker. The server calls it makes are added to the call's trace record
+    private <T> T runOnWorker(TraceRecorder.Call<T> call) throws ServerBusyException {
+        TraceRecorder.Call<T> task = trace == null ? call : trace.carry(call);
+        return workers.run(task::call);
+    }
+
+    // A transfer run on a worker once it has been admitted
+    private interface AdmittedCall<T> {
+        T call(FairScheduler.Slot slot) throws ServerBusyException;
+    }
+
+    // Admits a transfer and then runs it on a worker. Admission may wait for the client's rate limit and for a transfer
+    // slot, so it is done on the call's own RMI thread, and only transfers that were let in take a worker
+    private <T> T runAdmitted(long bytes, AdmittedCall<T> call) throws ServerBusyException {
+        try (FairScheduler.Slot slot = scheduler.admit(FairScheduler.BULK, bytes)) {
+            return runOnWorker(() -> call.call(slot));
+        }
     }
 
     // Output message to console, so that we can change logging method if needed without having to change all logging statements
@@ -103,62 +457,112 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
     }
 
     @Override
-    public String delete(String filename) {
-        log("Received DELF request");
+    public String delete(String filename) throws ServerBusyException {
+        return traced(TraceRecorder.DELETE, 0, filename, 0, () -> deleteFile(filename), result -> result.equals("File deleted"));
+    }
+
+    private String deleteFile(String filename) throws ServerBusyException {
+        try (FairScheduler.Slot ignored = scheduler.admit(FairScheduler.METADATA, 0)) {
+            log("Received DELF request");
+
+            // Delete full copies and any erasure coded shards
+            // Filters are not used here, so that a file uploaded through another front end is never missed
+            int numServers = deleteFromServers(filename, false);
+            int numShards = deleteShards(filename, false);
+
+            // Return status message
+            if (numServers == 0 && numShards == 0) {
+                log("Could not delete file from any servers");
+                return "Could not delete file";
+            }
+
+            if (numShards > 0) {
+                log(String.format("Deleted %,d erasure coded shards", numShards));
+            }
+            log(String.format("Deleted file from %,d/%,d servers", numServers, MAX_SERVERS));
+            return "File deleted";
+        }
+    }
 
+    // Deletes a file from every server. If useFilters is set then servers that definitely don't have the file are skipped
+    // Returns the number of servers that the file was deleted from
+    private int deleteFromServers(String filename, boolean useFilters) {
         // Iterate over servers. Keep track of the number of servers that we deleted from
         int numServers = 0;
         for (int i = 0; i < MAX_SERVERS; i++) {
             checkServer(i);
             ServerInterface server = fileServers.get(i);
             if (server == null) { continue; }
+            if (useFilters && !mightContain(i, filename)) { continue; }
 
-            // Upload
-            try {
-                if (server.delete(filename) == 1) {
-                    numServers++;
-                }
-            } catch (RemoteException e) {
-                disconnectServer(i, e);
+            if (deleteFromServer(i, filename)) {
+                numServers++;
             }
         }
 
-        // Return status message
-        if (numServers == 0) {
-            log("Could not delete file from any servers");
-            return "Could not delete file";
+        return numServers;
+    }
+
+    // Deletes a file from one server
+    // Returns true if the server had the file
+    private boolean deleteFromServer(int id, String filename) {
+        checkServer(id);
+        ServerInterface server = fileServers.get(id);
+        if (server == null) {
+            return false;
+        }
+
+        try {
+            long mark = namespace.mark(id);
+            if (server.delete(filename) == 1) {
+                namespace.deleted(id, filename, mark);
+                return true;
+            }
+        } catch (RemoteException e) {
+            disconnectServer(id, e);
+        }
+        return false;
+    }
+
+    // Deletes the erasure coded shards of a file from every server
+    // Returns the number of shards deleted (0 if erasure coding is not enabled)
+    private int deleteShards(String filename, boolean useFilters) {
+        if (erasureCoding == null) {
+            return 0;
+        }
+
+        int numShards = 0;
+        for (int i = 0; i < erasureCoding.getTotalShards(); i++) {
+            numShards += deleteFromServers(shardName(filename, i), useFilters);
         }
 
-        log(String.format("Deleted file from %,d/%,d servers", numServers, MAX_SERVERS));
-        return "File deleted";
+        return numShards;
     }
 
     @Override
-    public byte[] download(String filename) {
+    public Payload download(String filename) throws ServerBusyException {
+        return traced(TraceRecorder.DOWNLOAD, 0, filename, 0, () -> runAdmitted(0, slot -> downloadFile(filename, slot)), Objects::nonNull);
+    }
+
+    // The payload returned is sent on to the client straight from the buffer the server's response was read into, and
+    // the buffer is released once it has been sent
+    // The size of a download isn't known until a server returns it, so the client is charged for it once it arrives
+    // rather than spending a call on looking it up first. Data received before then is limited by the payload pool
+    private Payload downloadFile(String filename, FairScheduler.Slot slot) {
         // Implement basic load sharing by randomly selecting the server to download from
         // If this fails we then go to the next server, and then the next etc.
         // We stop when we get back to the starting server
         int startServer = random.nextInt(MAX_SERVERS);
         log("Received operation DWLD. Attempting to download file '" + filename + "' starting at server " + (startServer + 1));
 
+        // Find the servers to try, in order
+        // Servers whose filter rules the file out are skipped, so a missing file often costs no server calls at all
+        List<Integer> candidates = new ArrayList<>();
         int curServer = startServer;
         do {
-            // Retrieve stub and download
             checkServer(curServer);
-            ServerInterface server = fileServers.get(curServer);
-
-            if (server != null) {
-                try {
-                    log("Downloading file from server " + (curServer + 1));
-                    byte[] data = server.download(filename);
-                    if (data != null) {
-                        return data;
-                    } else {
-                        log("Server did not contain the file (or an internal error occurred)");
-                    }
-                } catch (RemoteException e) {
-                    disconnectServer(curServer, e);
-                }
+            if (fileServers.get(curServer) != null && mightContain(curServer, filename)) {
+                candidates.add(curServer);
             }
 
             // Try next server
@@ -168,127 +572,769 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
             }
         } while (curServer != startServer);
 
+        if (!candidates.isEmpty()) {
+            Payload data = downloadHedged(filename, candidates);
+            if (data != null) {
+                slot.charge(data.size());
+                return data.releaseAfterSend();
+            }
+        }
+
+        // The file may have been stored as erasure coded shards instead
+        if (erasureCoding != null) {
+            byte[] data = downloadErasureCoded(filename);
+            if (data != null) {
+                slot.charge(data.length);
+                return Payload.wrap(data);
+            }
+        }
+
         log("No servers could be downloaded from");
         return null;
     }
 
-    @Override
-    public boolean fileExists(String filename) {
-        log("Processing request to see whether a file exists on the system");
+    // Downloads from the candidate servers one at a time, moving on when a server fails or doesn't have the file
+    // If the current server is slower than usual then the request is also sent to the next server (a hedged request),
+    // as long as the file is known to be no larger than hedgeMaxBytes. The size is only looked up then, so downloads
+    // that finish within the hedge delay never pay for it
+    // Returns null if no server returned the file
+    private Payload downloadHedged(String filename, List<Integer> candidates) {
+        numDownloads.incrementAndGet();
+        CompletionService<Payload> completionService = new ExecutorCompletionService<>(requestExecutor);
+        Map<Future<Payload>, Integer> inFlight = new HashMap<>();
+        PendingPayloads pending = new PendingPayloads();
+        int nextCandidate = 0;
+        boolean hedged = false;
 
-        // Iterate over file servers, return true if one server returns true
-        for (int i = 0; i < MAX_SERVERS; i++) {
-            checkServer(i);
-            ServerInterface server = fileServers.get(i);
-            if (server == null) { continue; }
+        try {
+            int first = candidates.get(nextCandidate++);
+            inFlight.put(completionService.submit(() -> pending.arrived(downloadFromServer(first, filename))), first);
+
+            while (!inFlight.isEmpty()) {
+                // Wait for the hedge delay if we could still hedge, otherwise wait for whichever request finishes
+                Future<Payload> done;
+                boolean canHedge = !hedged && nextCandidate < candidates.size();
+                long hedgeDelay = canHedge ? getHedgeDelay() : -1;
+                if (hedgeDelay >= 0) {
+                    done = completionService.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        long size = sizeOnServers(filename);
+                        if (size >= 0 && size <= hedgeMaxBytes && tryStartHedge()) {
+                            int hedge = candidates.get(nextCandidate++);
+                            log(String.format("Server %d is slow (over %,.1fms), also requesting from server %d", inFlight.values().iterator().next() + 1, hedgeDelay / 1e6, hedge + 1));
+                            inFlight.put(completionService.submit(() -> pending.arrived(downloadFromServer(hedge, filename))), hedge);
+                        }
+                        hedged = true;
+                        continue;
+                    }
+                } else {
+                    done = completionService.take();
+                }
 
-            try {
-                if (server.fileExists(filename)) {
-                    return true;
+                int id = inFlight.remove(done);
+                Payload data = pending.claim(done.get());
+                if (data != null) {
+                    if (!inFlight.isEmpty()) {
+                        log("Using response from server " + (id + 1) + ", cancelling the other request");
+                    }
+                    return data;
                 }
-            } catch (RemoteException e) {
-                disconnectServer(i, e);
+
+                // Move on to the next server if nothing else is running
+                if (inFlight.isEmpty() && nextCandidate < candidates.size()) {
+                    int next = candidates.get(nextCandidate++);
+                    inFlight.put(completionService.submit(() -> pending.arrived(downloadFromServer(next, filename))), next);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            log("Error downloading file. " + e.getMessage());
+        } finally {
+            // The slower request's response is not needed
+            for (Future<Payload> future : inFlight.keySet()) {
+                future.cancel(true);
             }
+            pending.close();
         }
 
-        // If no servers contain the file then return false
-        return false;
+        return null;
+    }
+
+    // Returns how long to wait for a server before hedging, or -1 if hedging is not possible yet
+    private long getHedgeDelay() {
+        if (hedgeBudget == 0 || downloadLatency.getCount() < 20) {
+            return -1;
+        }
+        return downloadLatency.percentile(hedgePercentile);
+    }
+
+    // Returns true if hedging another request would stay within the hedge budget
+    private boolean tryStartHedge() {
+        if (numHedgedDownloads.get() * 100 >= (long) hedgeBudget * numDownloads.get()) {
+            return false;
+        }
+        numHedgedDownloads.incrementAndGet();
+        return true;
+    }
+
+    // Downloads a file from a single server, recording how long successful downloads of files that can be hedged take
+    // Returns null if the server doesn't have the file, could not be reached, or we had no memory to receive the file
+    private Payload downloadFromServer(int id, String filename) {
+        ServerInterface server = fileServers.get(id);
+        if (server == null) {
+            return null;
+        }
+
+        try {
+            log("Downloading file from server " + (id + 1));
+            long startTime = System.nanoTime();
+            Payload data = server.download(filename);
+            if (data == null) {
+                log("Server did not contain the file (or an internal error occurred)");
+                return null;
+            }
+
+            data.checkReceived();
+            if (data.size() <= hedgeMaxBytes) {
+                downloadLatency.record(System.nanoTime() - startTime);
+            } else {
+                log(String.format("Downloaded %,d bytes from server %d, too large to count towards the hedge delay", data.size(), id + 1));
+            }
+            return data;
+        } catch (RemoteException e) {
+            disconnectServer(id, e);
+            return null;
+        }
     }
 
     @Override
-    public String[] list() {
-        log("Received operation LIST. Checking server statuses first");
-        log("Retrieving listings from servers");
+    public long size(String filename) throws ServerBusyException {
+        return traced(TraceRecorder.SIZE, 0, filename, 0, () -> fileSize(filename), result -> result >= 0);
+    }
 
-        // Store listings in a set to remove duplicates
-        Set<String> listings = new HashSet<>();
+    private long fileSize(String filename) throws ServerBusyException {
+        try (FairScheduler.Slot ignored = scheduler.admit(FairScheduler.METADATA, 0)) {
+            log("Received request for the size of '" + filename + "'");
+
+            long size = sizeOnServers(filename);
+            if (size < 0 && erasureCoding != null) {
+                return erasureCodedSize(filename);
+            }
+            return size;
+        }
+    }
 
-        // Iterate over servers. Fetch listings and add to set
-        int serversUsed = 0;
+    // Returns the size of the first full copy of a file found on the servers, or -1 if none could be found
+    private long sizeOnServers(String filename) {
         for (int i = 0; i < MAX_SERVERS; i++) {
             checkServer(i);
             ServerInterface server = fileServers.get(i);
-            if (server == null) { continue; }
+            if (server == null || !mightContain(i, filename)) { continue; }
 
             try {
-                listings.addAll(server.list());
-                serversUsed++;
+                long size = server.size(filename);
+                if (size >= 0) {
+                    return size;
+                }
             } catch (RemoteException e) {
                 disconnectServer(i, e);
             }
         }
+        return -1;
+    }
 
-        // Convert set to sorted list
-        List<String> sortedListings = new ArrayList<>(listings);
-        Collections.sort(sortedListings);
-        String[] returnArray = sortedListings.toArray(new String[sortedListings.size()]);
-
-        log("Listings retrieved from " + serversUsed + " servers, sending to client");
-        return returnArray;
+    // Every shard of an erasure coded file records the size of the file in its header
+    // Returns -1 if there aren't enough shards of any one upload to rebuild the file
+    private long erasureCodedSize(String filename) {
+        ShardCopy[] current = findCurrentShards(filename);
+        return current == null ? -1 : anyCopy(current).length;
     }
 
     @Override
-    public String upload(String filename, byte[] data, boolean highReliability) {
-        log("Received operation UPLD. Checking server statuses first");
+    public Payload downloadRange(String filename, long offset, int length) throws ServerBusyException {
+        return traced(TraceRecorder.DOWNLOAD_RANGE, 0, filename, offset, () -> runAdmitted(length, slot -> downloadFileRange(filename, offset, length)), Objects::nonNull);
+    }
 
-        // Use a seperate method if we're uploading with high reliability
-        if (highReliability) {
-            return uploadAll(filename, data);
+    private Payload downloadFileRange(String filename, long offset, int length) {
+        log(String.format("Received operation DWLD for %,d bytes at %,d of '%s'", length, offset, filename));
+
+        Payload data = downloadRangeFromServers(filename, offset, length);
+        if (data == null && erasureCoding != null) {
+            data = downloadErasureCodedRange(filename, offset, length);
         }
 
-        // start timer
-        long startTime = System.currentTimeMillis();
+        if (data == null) {
+            log("No servers could be downloaded from");
+            return null;
+        }
+        return data.releaseAfterSend();
+    }
+
+    @Override
+    public FilePiece downloadPiece(String filename, String copy, long offset, int length) throws ServerBusyException {
+        return traced(TraceRecorder.DOWNLOAD_RANGE, 0, filename, offset, () -> runAdmitted(length, slot -> downloadFilePiece(filename, copy, offset, length)), Objects::nonNull);
+    }
 
-        // Get the server with the smallest number of files, not file size! (as per spec)
-        log("Retrieving listings from servers to determine order to attempt upload");
+    // The copy a download is pinned to is "<server>:<version>:<size>" for a replicated file, or
+    // "ec:<generation>:<size>" for an erasure coded one. Servers can hold different versions of a file (eg. one that was
+    // down during an overwrite), so reading every piece from wherever is fastest could mix two uploads together
+    private FilePiece downloadFilePiece(String filename, String copy, long offset, int length) {
+        try {
+            log(String.format("Received operation DWLD for %,d bytes at %,d of '%s'", length, offset, filename));
+
+            FilePiece piece;
+            if (copy == null) {
+                piece = downloadFirstPiece(filename, offset, length);
+            } else {
+                String[] parts = copy.split(":");
+                if (parts.length != 3) {
+                    log("Unknown copy '" + copy + "' of '" + filename + "'");
+                    return null;
+                }
+                long version = Long.parseLong(parts[1]);
+                long size = Long.parseLong(parts[2]);
+                Payload data = parts[0].equals("ec")
+                        ? downloadErasureCodedPiece(filename, version, offset, length)
+                        : downloadRangeFromServer(Integer.parseInt(parts[0]), filename, offset, length, version);
+                piece = data == null ? null : new FilePiece(data, copy, size);
+            }
 
-        // Store a list of pairs which store the number of files per file server (file server - number of files)
-        // If an error occurs querying a server then they will not be added to this list
-        List<Pair<Integer, Integer>> filesOnServers = new ArrayList<>();
+            if (piece == null) {
+                log(copy == null ? "No servers could be downloaded from" : "The copy of '" + filename + "' being downloaded has changed or is unreachable");
+                return null;
+            }
+            piece.getData().releaseAfterSend();
+            return piece;
+        } catch (NumberFormatException e) {
+            log("Unknown copy '" + copy + "' of '" + filename + "'");
+            return null;
+        }
+    }
 
-        // Iterate over servers
+    // Reads the first piece from the first server that has the file, or from the current shards if no server does
+    private FilePiece downloadFirstPiece(String filename, long offset, int length) {
+        int startServer = random.nextInt(MAX_SERVERS);
         for (int i = 0; i < MAX_SERVERS; i++) {
-            checkServer(i);
-            ServerInterface server = fileServers.get(i);
-            if (server == null) { continue; }
+            int id = (startServer + i) % MAX_SERVERS;
+            checkServer(id);
+            ServerInterface server = fileServers.get(id);
+            if (server == null || !mightContain(id, filename)) { continue; }
 
+            // If the file is written between these calls then the read no longer matches the version and we move on
             try {
-                // Find the number of files on the server and add it to the list
-                filesOnServers.add(new Pair<>(i, server.list().size()));
+                long version = server.version(filename);
+                long size = version == -1 ? -1 : server.size(filename);
+                if (size == -1) {
+                    continue;
+                }
+
+                Payload data = server.downloadRange(filename, offset, length, version);
+                if (data != null) {
+                    return new FilePiece(data.checkReceived(), id + ":" + version + ":" + size, size);
+                }
             } catch (RemoteException e) {
-                disconnectServer(i, e);
+                disconnectServer(id, e);
             }
         }
 
-        // No servers found
-        if (filesOnServers.size() == 0) {
-            String msg = "File could not be uploaded. System is offline (no servers)";
-            log(msg);
-            return msg;
+        if (erasureCoding == null) {
+            return null;
         }
+        ShardCopy[] current = findCurrentShards(filename);
+        if (current == null) {
+            return null;
+        }
+        ShardCopy any = anyCopy(current);
+        Payload data = downloadErasureCodedRange(filename, current, offset, length);
+        return data == null ? null : new FilePiece(data, "ec:" + any.generation + ":" + any.length, any.length);
+    }
 
-        // Sort servers by number of files (ascending order)
-        filesOnServers.sort(Comparator.comparingInt(Pair::getValue));
+    // Reads a later piece of an erasure coded file, if the shards of the given upload are still the current ones
+    private Payload downloadErasureCodedPiece(String filename, long generation, long offset, int length) {
+        if (erasureCoding == null) {
+            return null;
+        }
+        ShardCopy[] current = findCurrentShards(filename);
+        if (current == null || anyCopy(current).generation != generation) {
+            return null;
+        }
+        return downloadErasureCodedRange(filename, current, offset, length);
+    }
 
-        // Try to upload to servers
-        log(String.format("Found %,d servers available to upload to", filesOnServers.size()));
+    // Downloads part of a file from the first server that has it, starting at a random server to share the load
+    // Returns null if no server has the file
+    private Payload downloadRangeFromServers(String filename, long offset, int length) {
+        int startServer = random.nextInt(MAX_SERVERS);
+        for (int i = 0; i < MAX_SERVERS; i++) {
+            int id = (startServer + i) % MAX_SERVERS;
+            checkServer(id);
+            ServerInterface server = fileServers.get(id);
+            if (server == null || !mightContain(id, filename)) { continue; }
 
-        // Log messages
-        if (filesOnServers.size() > 0) {
-            List<String> filesOnServersString = new ArrayList<>();
-            for (Pair<Integer, Integer> pair : filesOnServers) {
-                filesOnServersString.add((pair.getKey() + 1) + " (" + pair.getValue() + ")");
+            try {
+                Payload data = server.downloadRange(filename, offset, length);
+                if (data != null) {
+                    return data.checkReceived();
+                }
+            } catch (RemoteException e) {
+                disconnectServer(id, e);
             }
-
-            log("Uploading files");
-            log("Server order (# of files): " + String.join(", ", filesOnServersString));
         }
 
-        // Upload file to servers found until success
-        int curIndex = 0;
-        while (curIndex < filesOnServers.size()) {
-            int curServer = filesOnServers.get(curIndex).getKey();
-            log("Uploading file to server " + (curServer + 1));
+        return null;
+    }
+
+    // Reads part of an erasure coded file straight from the data shards, which hold the file in order
+    // If a data shard is missing, or is replaced by another upload while it is read, then the whole file is rebuilt
+    // from the other shards and the range cut out of it
+    private Payload downloadErasureCodedRange(String filename, long offset, int length) {
+        ShardCopy[] current = findCurrentShards(filename);
+        return current == null ? null : downloadErasureCodedRange(filename, current, offset, length);
+    }
+
+    // Reads the range from the given shards of one upload
+    private Payload downloadErasureCodedRange(String filename, ShardCopy[] current, long offset, int length) {
+        // The pieces are copied straight from the servers' responses into one pooled buffer
+        long size = anyCopy(current).length;
+        long shardSize = erasureCoding.getShardSize(size);
+        long end = Math.min(size, offset + length);
+        Payload result = Payload.allocate((int) Math.max(0, end - offset));
+        ByteBuffer out = result.buffer();
+        List<ShardCopy> used = new ArrayList<>();
+        for (long position = offset; position < end; ) {
+            int index = (int) (position / shardSize);
+            long shardOffset = position - index * shardSize;
+            int count = (int) Math.min(end - position, shardSize - shardOffset);
+
+            ShardCopy copy = current[index];
+            Payload piece = copy == null ? null : downloadRangeFromServer(copy.server, shardName(filename, index), ReedSolomon.HEADER_SIZE + shardOffset, count);
+            if (piece == null || piece.size() != count) {
+                if (piece != null) {
+                    piece.release();
+                }
+                result.release();
+
+                log("Data shard " + index + " of '" + filename + "' is missing, rebuilding the whole file");
+                return rebuildRange(filename, current, offset, length);
+            }
+
+            out.put(piece.buffer());
+            piece.release();
+            used.add(copy);
+            position += count;
+        }
+
+        // A shard that was replaced while we read it may have given us data from the new upload
+        for (ShardCopy copy : used) {
+            ShardCopy now = readShardHeader(copy.server, filename, copy.index);
+            if (now == null || now.generation != copy.generation) {
+                result.release();
+                log("Shard " + copy.index + " of '" + filename + "' was replaced while it was read, rebuilding the whole file");
+                return rebuildRange(filename, current, offset, length);
+            }
+        }
+
+        return result;
+    }
+
+    private Payload rebuildRange(String filename, ShardCopy[] current, long offset, int length) {
+        byte[] data = downloadErasureCoded(filename, current);
+        if (data == null) {
+            return null;
+        }
+        int start = (int) Math.min(offset, data.length);
+        return Payload.wrap(data, start, (int) Math.min(data.length, offset + (long) length) - start);
+    }
+
+    // Downloads part of a file from one server
+    // Returns null if the server doesn't have the file or could not be reached
+    private Payload downloadRangeFromServer(int id, String filename, long offset, int length) {
+        return downloadRangeFromServer(id, filename, offset, length, -1);
+    }
+
+    // Also returns null if the file is no longer at the given version, unless it is -1
+    private Payload downloadRangeFromServer(int id, String filename, long offset, int length, long version) {
+        ServerInterface server = id >= 0 && id < MAX_SERVERS ? fileServers.get(id) : null;
+        if (server == null) {
+            return null;
+        }
+
+        try {
+            Payload data = version == -1 ? server.downloadRange(filename, offset, length) : server.downloadRange(filename, offset, length, version);
+            return data == null ? null : data.checkReceived();
+        } catch (RemoteException e) {
+            disconnectServer(id, e);
+            return null;
+        }
+    }
+
+    // Downloads the shards of an erasure coded file in parallel and rebuilds the file once k shards have arrived
+    // Only shards of the newest upload that stored enough of them are used, wherever they are
+    // Returns null if not enough shards could be found
+    private byte[] downloadErasureCoded(String filename) {
+        log("Attempting to download erasure coded shards of '" + filename + "'");
+
+        ShardCopy[] current = findCurrentShards(filename);
+        if (current == null) {
+            log("Not enough shards of '" + filename + "' were found to rebuild it");
+            return null;
+        }
+        return downloadErasureCoded(filename, current);
+    }
+
+    // Rebuilds the file from the given shards of one upload
+    private byte[] downloadErasureCoded(String filename, ShardCopy[] current) {
+
+        CompletionService<Payload> completionService = new ExecutorCompletionService<>(requestExecutor);
+        List<Future<Payload>> futures = new ArrayList<>();
+        PendingPayloads pending = new PendingPayloads();
+        for (ShardCopy copy : current) {
+            if (copy != null) {
+                futures.add(completionService.submit(() -> pending.arrived(downloadShard(copy.server, shardName(filename, copy.index)))));
+            }
+        }
+
+        // Take shards as they arrive until we have enough. Decoding works on arrays, so each shard is copied out of its
+        // buffer. A shard replaced by another upload since its header was read is not used
+        long generation = anyCopy(current).generation;
+        byte[][] shards = new byte[erasureCoding.getTotalShards()][];
+        int numShards = 0;
+        try {
+            for (int i = 0; i < futures.size() && numShards < erasureCoding.getDataShards(); i++) {
+                byte[] shard = toArrayAndRelease(pending.claim(completionService.take().get()));
+                int index = ReedSolomon.readShardIndex(shard);
+                if (index >= 0 && index < shards.length && shards[index] == null && ReedSolomon.readGeneration(shard) == generation) {
+                    shards[index] = shard;
+                    numShards++;
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            log("Error downloading shards. " + e.getMessage());
+        } finally {
+            // Any shards still being downloaded are not needed
+            for (Future<Payload> future : futures) {
+                future.cancel(true);
+            }
+            pending.close();
+        }
+
+        if (numShards < erasureCoding.getDataShards()) {
+            log(String.format("Only found %,d/%,d shards needed to rebuild the file", numShards, erasureCoding.getDataShards()));
+            return null;
+        }
+
+        byte[] data = erasureCoding.decode(shards);
+        if (data == null) {
+            log("Shards could not be decoded (they may have been uploaded with different erasure coding settings)");
+        } else {
+            log(String.format("Rebuilt file from %,d shards", numShards));
+        }
+        return data;
+    }
+
+    // Downloads a shard from a server
+    // Returns null if the server doesn't have the shard or could not be reached
+    private Payload downloadShard(int id, String name) {
+        ServerInterface server = fileServers.get(id);
+        if (server == null) {
+            return null;
+        }
+
+        try {
+            Payload shard = server.download(name);
+            return shard == null ? null : shard.checkReceived();
+        } catch (RemoteException e) {
+            disconnectServer(id, e);
+            return null;
+        }
+    }
+
+    // A copy of one of a file's shards on a server, as described by its header
+    private static class ShardCopy {
+        final int server;
+        final int index;
+        final long generation;
+        final long length;
+
+        ShardCopy(int server, int index, long generation, long length) {
+            this.server = server;
+            this.index = index;
+            this.generation = generation;
+            this.length = length;
+        }
+    }
+
+    // Finds the shards of the newest upload of a file that stored enough of them to rebuild it, indexed by shard
+    // Shards left behind by earlier uploads (eg. on a server that was down when the file was overwritten, and so kept
+    // its old shard) are ignored, wherever they are
+    // Returns null if no upload has enough shards
+    private ShardCopy[] findCurrentShards(String filename) {
+        // Every server that might hold each shard is asked for its header, in parallel
+        List<Future<ShardCopy>> futures = new ArrayList<>();
+        for (int i = 0; i < erasureCoding.getTotalShards(); i++) {
+            String name = shardName(filename, i);
+            for (int id = 0; id < MAX_SERVERS; id++) {
+                checkServer(id);
+                if (fileServers.get(id) == null || !mightContain(id, name)) { continue; }
+
+                int index = i;
+                int server = id;
+                futures.add(requestExecutor.submit(() -> readShardHeader(server, filename, index)));
+            }
+        }
+
+        // Group the copies by the upload they came from, newest first
+        TreeMap<Long, ShardCopy[]> generations = new TreeMap<>(Collections.reverseOrder());
+        for (Future<ShardCopy> future : futures) {
+            try {
+                ShardCopy copy = future.get();
+                if (copy != null) {
+                    ShardCopy[] copies = generations.computeIfAbsent(copy.generation, generation -> new ShardCopy[erasureCoding.getTotalShards()]);
+                    if (copies[copy.index] == null) {
+                        copies[copy.index] = copy;
+                    }
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                log("Error reading shard header. " + e.getMessage());
+            }
+        }
+
+        for (ShardCopy[] copies : generations.values()) {
+            int count = 0;
+            for (ShardCopy copy : copies) {
+                if (copy != null) {
+                    count++;
+                }
+            }
+            if (count >= erasureCoding.getDataShards()) {
+                return copies;
+            }
+        }
+        return null;
+    }
+
+    // Reads the header of a shard from a server
+    // Returns null if the server doesn't have the shard, could not be reached, or the shard was encoded differently
+    private ShardCopy readShardHeader(int id, String filename, int index) {
+        byte[] header = toArrayAndRelease(downloadRangeFromServer(id, shardName(filename, index), 0, ReedSolomon.HEADER_SIZE));
+        long length = erasureCoding.readLength(header);
+        if (length < 0 || ReedSolomon.readShardIndex(header) != index) {
+            return null;
+        }
+        return new ShardCopy(id, index, ReedSolomon.readGeneration(header), length);
+    }
+
+    // Returns one of the copies found by findCurrentShards, which all describe the same upload
+    private static ShardCopy anyCopy(ShardCopy[] copies) {
+        for (ShardCopy copy : copies) {
+            if (copy != null) {
+                return copy;
+            }
+        }
+        throw new IllegalArgumentException("No shards");
+    }
+
+    @Override
+    public boolean fileExists(String filename) throws ServerBusyException {
+        return traced(TraceRecorder.EXISTS, 0, filename, 0, () -> fileExistsOnServers(filename), result -> result);
+    }
+
+    private boolean fileExistsOnServers(String filename) throws ServerBusyException {
+        try (FairScheduler.Slot ignored = scheduler.admit(FairScheduler.METADATA, 0)) {
+            log("Processing request to see whether a file exists on the system");
+
+            if (existsOnServers(filename)) {
+                return true;
+            }
+
+            // Check whether the file is stored as shards instead. Any shard means the file exists
+            if (erasureCoding != null) {
+                for (int i = 0; i < erasureCoding.getTotalShards(); i++) {
+                    if (existsOnServers(shardName(filename, i))) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+    }
+
+    // Returns true if any server contains a file with the given name
+    private boolean existsOnServers(String filename) {
+        // Iterate over file servers, return true if one server returns true
+        for (int i = 0; i < MAX_SERVERS; i++) {
+            checkServer(i);
+            ServerInterface server = fileServers.get(i);
+            if (server == null) { continue; }
+
+            if (hasNamespace(i, server)) {
+                if (namespace.contains(i, filename)) {
+                    return true;
+                }
+                continue;
+            }
+
+            // Ask the server directly if it couldn't be subscribed to (eg. it is busy)
+            server = fileServers.get(i);
+            if (server == null || !mightContain(i, filename)) { continue; }
+
+            try {
+                if (server.fileExists(filename)) {
+                    return true;
+                }
+            } catch (RemoteException e) {
+                disconnectServer(i, e);
+            }
+        }
+
+        // If no servers contain the file then return false
+        return false;
+    }
+
+    @Override
+    public String[] list() throws ServerBusyException {
+        return traced(TraceRecorder.LIST, 0, null, 0, this::listFiles, result -> true);
+    }
+
+    private String[] listFiles() throws ServerBusyException {
+        try (FairScheduler.Slot ignored = scheduler.admit(FairScheduler.METADATA, 0)) {
+            log("Received operation LIST. Checking server statuses first");
+
+            // Store listings in a set to remove duplicates
+            Set<String> listings = new HashSet<>();
+
+            // Iterate over servers. Fetch listings and add to set
+            int serversUsed = 0;
+            for (int i = 0; i < MAX_SERVERS; i++) {
+                checkServer(i);
+                ServerInterface server = fileServers.get(i);
+                if (server == null) { continue; }
+
+                // Shards are listed under the name of the file they belong to
+                if (hasNamespace(i, server)) {
+                    for (String listing : namespace.list(i)) {
+                        listings.add(getFileName(listing));
+                    }
+                    serversUsed++;
+                    continue;
+                }
+
+                // Fetch the listings from the server if it couldn't be subscribed to
+                server = fileServers.get(i);
+                if (server == null) { continue; }
+
+                try {
+                    for (String listing : server.list()) {
+                        listings.add(getFileName(listing));
+                    }
+                    serversUsed++;
+                } catch (RemoteException e) {
+                    disconnectServer(i, e);
+                }
+            }
+
+            // Convert set to sorted list
+            List<String> sortedListings = new ArrayList<>(listings);
+            Collections.sort(sortedListings);
+            String[] returnArray = sortedListings.toArray(new String[sortedListings.size()]);
+
+            log("Listings retrieved from " + serversUsed + " servers, sending to client");
+            return returnArray;
+        }
+    }
+
+    @Override
+    public String upload(String filename, Payload data, boolean highReliability) throws ServerBusyException {
+        int flags = highReliability ? TraceRecorder.HIGH_RELIABILITY : 0;
+        try {
+            return traced(TraceRecorder.UPLOAD, flags, filename, data.size(), () -> {
+                data.checkReceived();
+                if (data.size() > maxCallBytes) {
+                    log(String.format("Rejected upload of '%s', %,d bytes is too large for one call", filename, data.size()));
+                    return String.format("File is too large to upload in one call (over %,d bytes), send it in pieces", maxCallBytes);
+                }
+
+                return runAdmitted(data.size(), slot -> storeFile(filename, data, highReliability));
+            }, result -> result.startsWith("Uploaded"));
+        } finally {
+            data.release();
+        }
+    }
+
+    // Stores a file on the servers once the upload has been admitted
+    // Every server is sent a view of the same payload, so a high reliability upload holds one copy of the file however
+    // many servers it goes to
+    private String storeFile(String filename, Payload data, boolean highReliability) {
+        log("Received operation UPLD. Checking server statuses first");
+
+        // Use a seperate method if we're uploading with high reliability
+        if (highReliability) {
+            if (erasureCoding != null) {
+                return uploadErasureCoded(filename, data.toArray());
+            }
+            return uploadAll(filename, data);
+        }
+
+        // start timer
+        long startTime = System.currentTimeMillis();
+
+        // Get the server with the lowest usage, taking into account bytes used, number of files and current load
+        log("Retrieving stats from servers to determine order to attempt upload");
+
+        // Store a list of pairs which store the stats per file server (file server - stats)
+        // If an error occurs querying a server, or the server is too full, then they will not be added to this list
+        List<Pair<Integer, ServerStats>> statsOnServers = new ArrayList<>();
+        boolean serversFull = false;
+
+        // Iterate over servers
+        for (int i = 0; i < MAX_SERVERS; i++) {
+            checkServer(i);
+            ServerInterface server = fileServers.get(i);
+            if (server == null) { continue; }
+
+            try {
+                ServerStats stats = server.stats();
+                if (!hasSpaceFor(stats, data.size())) {
+                    log("Server " + (i + 1) + " is above the high water mark, skipping (" + stats + ")");
+                    serversFull = true;
+                    continue;
+                }
+
+                statsOnServers.add(new Pair<>(i, stats));
+            } catch (RemoteException e) {
+                disconnectServer(i, e);
+            }
+        }
+
+        // No servers found
+        if (statsOnServers.size() == 0) {
+            String msg = serversFull ? "File could not be uploaded. All servers are full" : "File could not be uploaded. System is offline (no servers)";
+            log(msg);
+            return msg;
+        }
+
+        // Sort servers by score (ascending order)
+        List<Pair<Integer, Double>> serverOrder = rankServers(statsOnServers);
+
+        // Try to upload to servers
+        log(String.format("Found %,d servers available to upload to", serverOrder.size()));
+
+        // Log messages
+        if (serverOrder.size() > 0) {
+            List<String> serverOrderString = new ArrayList<>();
+            for (Pair<Integer, Double> pair : serverOrder) {
+                serverOrderString.add(String.format("%d (%.2f)", pair.getKey() + 1, pair.getValue()));
+            }
+
+            log("Uploading files");
+            log("Server order (score): " + String.join(", ", serverOrderString));
+        }
+
+        // Upload file to servers found until success
+        int curIndex = 0;
+        while (curIndex < serverOrder.size()) {
+            int curServer = serverOrder.get(curIndex).getKey();
+            log("Uploading file to server " + (curServer + 1));
 
             if (uploadToServer(curServer, filename, data)) {
                 break;
@@ -297,26 +1343,246 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
             curIndex++;
         }
 
-        if (curIndex == filesOnServers.size()) {
+        if (curIndex == serverOrder.size()) {
             return "Could not upload file";
         }
 
+        // Shards from an earlier erasure coded upload would otherwise outlive this copy
+        deleteShards(filename, true);
+
         // Get stats and return message
         long endTime = System.currentTimeMillis();
         double timeTaken = (endTime - startTime);
         timeTaken /= 1000;
 
-        return String.format("Uploaded file.%,d bytes uploaded in %,.2fs", data.length, timeTaken);
+        return String.format("Uploaded file.%,d bytes uploaded in %,.2fs", data.size(), timeTaken);
+    }
+
+    @Override
+    public String startUpload(String filename, long size, boolean highReliability) throws ServerBusyException {
+        int flags = highReliability ? TraceRecorder.HIGH_RELIABILITY : 0;
+        return traced(TraceRecorder.START_UPLOAD, flags, filename, size, () -> createUpload(filename, size, highReliability), Objects::nonNull);
+    }
+
+    private String createUpload(String filename, long size, boolean highReliability) throws ServerBusyException {
+        try (FairScheduler.Slot ignored = scheduler.admit(FairScheduler.METADATA, 0)) {
+            expireUploads();
+
+            // Servers are sent the whole file in one call, so it has to fit in a payload
+            if (size < 0 || size > Payload.getMaxBytes()) {
+                log(String.format("Rejected upload of '%s', %,d bytes is too large", filename, size));
+                return null;
+            }
+
+            // The size is taken up front, so pieces are only ever sent for uploads that we have room to finish
+            // A single upload larger than the limit is let through when no others are pending, otherwise it could never run
+            synchronized (uploadSessions) {
+                long pending = getPendingUploadBytes();
+                if (pending > 0 && pending + size > maxPendingBytes) {
+                    log(String.format("Rejected upload of '%s', %,d bytes of uploads are already pending", filename, pending));
+                    throw new ServerBusyException(String.format("Front end is busy, retry later: %,d bytes of uploads are already pending", pending));
+                }
+
+                try {
+                    String uploadID = UUID.randomUUID().toString();
+                    uploadSessions.put(uploadID, new UploadSession(filename, size, highReliability));
+                    log(String.format("Started upload %s of '%s' (%,d bytes)", uploadID, filename, size));
+                    return uploadID;
+                } catch (IOException e) {
+                    log("Could not create temporary upload file. " + e.getMessage());
+                    return null;
+                }
+            }
+        }
+    }
+
+    // Returns the total size of the uploads being sent in pieces
+    private long getPendingUploadBytes() {
+        long total = 0;
+        for (UploadSession session : uploadSessions.values()) {
+            total += session.getSize();
+        }
+        return total;
+    }
+
+    @Override
+    public boolean uploadChunk(String uploadID, long offset, Payload data) throws ServerBusyException {
+        try {
+            return traced(TraceRecorder.UPLOAD_CHUNK, 0, getUploadFilename(uploadID), offset, data.size(), () -> {
+                data.checkReceived();
+                if (data.size() > maxCallBytes) {
+                    log(String.format("Rejected piece of upload %s, %,d bytes is too large for one call", uploadID, data.size()));
+                    return false;
+                }
+
+                return runAdmitted(data.size(), slot -> storeChunk(uploadID, offset, data));
+            }, result -> result);
+        } finally {
+            data.release();
+        }
+    }
+
+    // Returns the name of the file being uploaded, or null if the upload is unknown
+    private String getUploadFilename(String uploadID) {
+        UploadSession session = uploadSessions.get(uploadID);
+        return session == null ? null : session.getFilename();
+    }
+
+    private boolean storeChunk(String uploadID, long offset, Payload data) {
+        UploadSession session = uploadSessions.get(uploadID);
+        if (session == null) {
+            log("Received a piece of unknown upload " + uploadID);
+            return false;
+        }
+
+        try {
+            session.write(offset, data);
+            return true;
+        } catch (IOException e) {
+            log("Could not store piece of upload " + uploadID + ". " + e.getMessage());
+            closeUpload(uploadID);
+            return false;
+        }
+    }
+
+    @Override
+    public String finishUpload(String uploadID) throws ServerBusyException {
+        UploadSession session = uploadSessions.get(uploadID);
+        int flags = TraceRecorder.CHUNKED | (session != null && session.isHighReliability() ? TraceRecorder.HIGH_RELIABILITY : 0);
+        String filename = session == null ? null : session.getFilename();
+        long size = session == null ? 0 : session.getSize();
+
+        return traced(TraceRecorder.UPLOAD, flags, filename, size, () -> {
+            if (session == null) {
+                return "Upload not found (it may have been abandoned)";
+            }
+            if (!session.isComplete()) {
+                closeUpload(uploadID);
+                return String.format("Upload is incomplete, %,d/%,d bytes received", session.getBytesReceived(), session.getSize());
+            }
+
+            return runAdmitted(session.getSize(), slot -> storeUpload(uploadID, session));
+        }, result -> result.startsWith("Uploaded"));
+    }
+
+    // Sends a completed upload to the servers
+    // The upload is admitted before it is read back into memory. If the front end is busy then the upload is kept, so
+    // that the client can try to finish it again
+    private String storeUpload(String uploadID, UploadSession session) {
+        Payload data;
+        try {
+            data = session.readAll();
+        } catch (IOException e) {
+            closeUpload(uploadID);
+            return "Could not read upload from temporary file. " + e.getMessage();
+        }
+
+        try {
+            String response = storeFile(session.getFilename(), data, session.isHighReliability());
+            closeUpload(uploadID);
+            return response;
+        } finally {
+            data.release();
+        }
+    }
+
+    @Override
+    public void abortUpload(String uploadID) throws ServerBusyException {
+        traced(TraceRecorder.ABORT_UPLOAD, 0, getUploadFilename(uploadID), 0, () -> closeUpload(uploadID), result -> result);
+    }
+
+    // Discards an upload and its temporary file. Returns false if the upload was unknown
+    private boolean closeUpload(String uploadID) {
+        UploadSession session = uploadSessions.remove(uploadID);
+        if (session == null) {
+            return false;
+        }
+
+        session.close();
+        return true;
+    }
+
+    // Checks for abandoned uploads every half timeout, so that their temporary files don't wait for the next upload
+    private void expireUploadsPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1000, uploadTimeoutMs / 2));
+            } catch (InterruptedException e) {
+                return;
+            }
+            expireUploads();
+        }
+    }
+
+    // Abandons uploads that the client has stopped sending
+    private void expireUploads() {
+        for (Map.Entry<String, UploadSession> entry : uploadSessions.entrySet()) {
+            if (entry.getValue().getIdleMs() > uploadTimeoutMs) {
+                log("Abandoning idle upload " + entry.getKey() + " of '" + entry.getValue().getFilename() + "'");
+                closeUpload(entry.getKey());
+            }
+        }
+    }
+
+    // Returns true if writing the given number of bytes would leave the server below the high water mark
+    private boolean hasSpaceFor(ServerStats stats, long bytes) {
+        return stats.getFreeSpace() > bytes && stats.getDiskUsageAfter(bytes) <= highWaterMark;
+    }
+
+    // Returns true if the server can be asked for its stats and has space for the upload
+    // Servers that can't be reached are left for the upload itself to fail on
+    private boolean hasSpaceFor(int id, long bytes) {
+        ServerInterface server = fileServers.get(id);
+        if (server == null) {
+            return true;
+        }
+
+        try {
+            ServerStats stats = server.stats();
+            if (!hasSpaceFor(stats, bytes)) {
+                log("Server " + (id + 1) + " is above the high water mark, skipping (" + stats + ")");
+                return false;
+            }
+        } catch (RemoteException e) {
+            disconnectServer(id, e);
+        }
+        return true;
+    }
+
+    // Scores each server from its stats. Each measure is scaled relative to the largest value among the servers
+    // Returns the server IDs and scores, lowest score (emptiest server) first
+    private List<Pair<Integer, Double>> rankServers(List<Pair<Integer, ServerStats>> statsOnServers) {
+        long maxBytes = 1;
+        long maxFiles = 1;
+        long maxLoad = 1;
+        for (Pair<Integer, ServerStats> pair : statsOnServers) {
+            maxBytes = Math.max(maxBytes, pair.getValue().getBytesUsed());
+            maxFiles = Math.max(maxFiles, pair.getValue().getFileCount());
+            maxLoad = Math.max(maxLoad, pair.getValue().getActiveOperations());
+        }
+
+        List<Pair<Integer, Double>> scores = new ArrayList<>();
+        for (Pair<Integer, ServerStats> pair : statsOnServers) {
+            ServerStats stats = pair.getValue();
+            double score = bytesWeight * (double) stats.getBytesUsed() / maxBytes
+                    + filesWeight * (double) stats.getFileCount() / maxFiles
+                    + loadWeight * (double) stats.getActiveOperations() / maxLoad;
+            scores.add(new Pair<>(pair.getKey(), score));
+        }
+
+        scores.sort(Comparator.comparingDouble(Pair::getValue));
+        return scores;
     }
 
-    private String uploadAll(String filename, byte[] data) {
+    private String uploadAll(String filename, Payload data) {
         // start timer
         long startTime = System.currentTimeMillis();
 
         // Iterate over servers. Keep track of the number of servers that were uploaded to
         int numServers = 0;
         for (int i = 0; i < MAX_SERVERS; i++) {
-            if (uploadToServer(i, filename, data)) {
+            checkServer(i);
+            if (hasSpaceFor(i, data.size()) && uploadToServer(i, filename, data)) {
                 numServers++;
             }
         }
@@ -326,28 +1592,176 @@ public class FrontEnd extends UnicastRemoteObject implements FrontEndInterface {
             return "Could not upload file to any servers";
         }
 
+        deleteShards(filename, true);
+
         // Get stats
         long endTime = System.currentTimeMillis();
         double timeTaken = (endTime - startTime);
         timeTaken /= 1000;
 
-        return String.format("Uploaded file with high reliability\n%,d bytes processed in %,.2fs", data.length, timeTaken);
+        return String.format("Uploaded file with high reliability\n%,d bytes processed in %,.2fs", data.size(), timeTaken);
     }
 
-    // Uploads data to an individual server
+    private String uploadErasureCoded(String filename, byte[] data) {
+        // start timer
+        long startTime = System.currentTimeMillis();
+
+        byte[][] shards = erasureCoding.encode(data, newGeneration());
+
+        // Shard i goes to server (start + i), where the start server is picked from the filename to spread load
+        // Shards are uploaded in parallel
+        int startServer = Math.floorMod(filename.hashCode(), MAX_SERVERS);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            int index = i;
+            futures.add(requestExecutor.submit(() -> uploadShard(filename, shards[index], index, startServer)));
+        }
+
+        // Count the shards that were stored, and where
+        int numShards = 0;
+        int[] storedOn = new int[shards.length];
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                storedOn[i] = futures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                log("Error uploading shard. " + e.getMessage());
+                storedOn[i] = -1;
+            }
+            if (storedOn[i] != -1) {
+                numShards++;
+            }
+        }
+
+        // The file can't be rebuilt unless at least k shards are stored, so the ones that were are removed again
+        if (numShards < erasureCoding.getDataShards()) {
+            for (int i = 0; i < storedOn.length; i++) {
+                if (storedOn[i] != -1) {
+                    deleteFromServer(storedOn[i], shardName(filename, i));
+                }
+            }
+            return String.format("Could not upload file, only %,d/%,d shards were stored", numShards, shards.length);
+        }
+
+        // Full copies from an earlier upload would be downloaded in preference to the shards
+        deleteFromServers(filename, true);
+
+        // Shards from an earlier upload that are on other servers than this upload's (eg. a shard that was stored on
+        // another server because its usual one was down) would otherwise be left behind
+        for (int i = 0; i < storedOn.length; i++) {
+            for (int id = 0; id < MAX_SERVERS; id++) {
+                if (id != storedOn[i] && mightContain(id, shardName(filename, i))) {
+                    deleteFromServer(id, shardName(filename, i));
+                }
+            }
+        }
+
+        // Get stats
+        long endTime = System.currentTimeMillis();
+        double timeTaken = (endTime - startTime);
+        timeTaken /= 1000;
+
+        return String.format("Uploaded file with high reliability (erasure coded %d+%d)\n%,d bytes stored as %,d/%,d shards in %,.2fs",
+                erasureCoding.getDataShards(), erasureCoding.getParityShards(), data.length, numShards, shards.length, timeTaken);
+    }
+
+    // Uploads a shard to the server it is placed on, moving on to the next servers if that fails
+    // Returns the ID of the server that the shard was stored on, or -1 if it could not be stored
+    private int uploadShard(String filename, byte[] shard, int index, int startServer) {
+        int preferredServer = (startServer + index) % MAX_SERVERS;
+
+        for (int i = 0; i < MAX_SERVERS; i++) {
+            int id = (preferredServer + i) % MAX_SERVERS;
+            checkServer(id);
+            if (hasSpaceFor(id, shard.length) && uploadToServer(id, shardName(filename, index), Payload.wrap(shard))) {
+                return id;
+            }
+        }
+
+        return -1;
+    }
+
+    // Returns a generation for a new erasure coded upload. Generations increase with time, so that a later upload's
+    // shards are preferred to an earlier one's, and the low bits are random so that uploads in the same millisecond
+    // (possibly on different front ends) don't share one
+    private long newGeneration() {
+        return System.currentTimeMillis() << 16 | random.nextInt(1 << 16);
+    }
+
+    private static String shardName(String filename, int index) {
+        return filename + SHARD_SUFFIX + index;
+    }
+
+    // Uploads data to an individual server. The server is sent a view of the data rather than a copy
     // Returns true if file successfully uploaded
-    private boolean uploadToServer(int id, String filename, byte[] data) {
+    private boolean uploadToServer(int id, String filename, Payload data) {
         checkServer(id);
         ServerInterface server = fileServers.get(id);
         if (server == null) { return false; }
 
         // Upload
+        Payload view = data.view();
         try {
-            return server.upload(filename, data);
+            long mark = namespace.mark(id);
+            if (server.upload(filename, view)) {
+                addToFilter(id, filename);
+                namespace.added(id, filename, mark);
+                return true;
+            }
+            return false;
         } catch (RemoteException e) {
             log("Error uploading file to server " + (id + 1));
             disconnectServer(id, e);
             return false;
+        } finally {
+            view.release();
+        }
+    }
+
+    // Returns a payload's data as an array and releases it, for the erasure coding code which works on arrays
+    private static byte[] toArrayAndRelease(Payload payload) {
+        if (payload == null) {
+            return null;
+        }
+
+        try {
+            return payload.toArray();
+        } finally {
+            payload.release();
+        }
+    }
+
+    // Payloads being downloaded in parallel, of which only some are used
+    // Downloads pass their payload through arrived() and the caller claims the ones it uses. Once the caller is done,
+    // any payload that wasn't claimed, or arrives later from a download that was given up on, is released
+    private static class PendingPayloads {
+        private final Set<Payload> unclaimed = new HashSet<>();
+        private boolean closed = false;
+
+        synchronized Payload arrived(Payload payload) {
+            if (payload == null) {
+                return null;
+            }
+            if (closed) {
+                payload.release();
+                return null;
+            }
+            unclaimed.add(payload);
+            return payload;
+        }
+
+        synchronized Payload claim(Payload payload) {
+            if (payload != null) {
+                unclaimed.remove(payload);
+            }
+            return payload;
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (Payload payload : unclaimed) {
+                payload.release();
+            }
+            unclaimed.clear();
         }
     }
 }
@@ -8,7 +8,21 @@ public interface FrontEndInterface extends Remote {
 
     // Download a file from a server
     // Returns the bytes (or null if operation could not be completed)
-    byte[] download(String filename) throws RemoteException;
+    // Payloads received are pooled, callers that are done with one can release it so its buffer is reused
+    Payload download(String filename) throws RemoteException;
+
+    // Returns the size of a file in bytes, or -1 if it does not exist
+    long size(String filename) throws RemoteException;
+
+    // Download part of a file, so that large files can be streamed to disk a piece at a time
+    // Returns up to length bytes starting at offset (or null if the file could not be found)
+    Payload downloadRange(String filename, long offset, int length) throws RemoteException;
+
+    // Download part of a file, always from the same copy of the file. The first piece is asked for with a null copy,
+    // and its copy is passed with every later piece
+    // Returns null if the file could not be found, or for a later piece if that copy has changed or is unreachable, in
+    // which case the download has to start again
+    FilePiece downloadPiece(String filename, String copy, long offset, int length) throws RemoteException;
 
     // Returns true if the file exists on the server
     boolean fileExists(String filename) throws RemoteException;
@@ -19,5 +33,20 @@ public interface FrontEndInterface extends Remote {
 
     // Upload a file to the server
     // Returns a response message that can be displayed to the client
-    String upload(String filename, byte[] data, boolean highReliability) throws RemoteException;
+    String upload(String filename, Payload data, boolean highReliability) throws RemoteException;
+
+    // Uploads a file in pieces. startUpload returns an upload ID, which is passed with every piece and then to
+    // finishUpload to store the file. Uploads are held by the front end that started them, so every call for an upload
+    // must go to the same front end. Uploads that are left idle are abandoned
+    String startUpload(String filename, long size, boolean highReliability) throws RemoteException;
+
+    // Returns false if the upload is unknown (eg. it was abandoned)
+    boolean uploadChunk(String uploadID, long offset, Payload data) throws RemoteException;
+
+    // Stores the file once every piece has arrived. This ends the upload whether or not the file could be stored,
+    // unless the front end is busy, in which case it can be finished again later
+    // Returns a response message that can be displayed to the client
+    String finishUpload(String uploadID) throws RemoteException;
+
+    void abortUpload(String uploadID) throws RemoteException;
 }
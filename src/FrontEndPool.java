@@ -0,0 +1,230 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.StubNotFoundException;
+import java.rmi.UnknownHostException;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Client side view of all the front ends bound in a registry
+// Calls are spread across the front ends in a round robin fashion, and if a front end fails then the call is retried on
+// the next one. A RemoteException is only thrown to the caller once every front end has failed, or a
+// ServerBusyException if the last front end tried was overloaded
+// Uploads and deletes may already have been carried out by a front end that failed while answering, so they are only
+// retried if the call never reached the front end (or it was busy, which turns calls away before doing anything)
+public class FrontEndPool implements FrontEndInterface {
+    private static final String FRONTEND_RMI_NAME = "FrontEnd";
+
+    private Registry registry;
+    private final List<FrontEndInterface> frontEnds = new ArrayList<>();
+    private final AtomicInteger nextFrontEnd = new AtomicInteger();
+
+    // Uploads sent in pieces are held by the front end that started them, so their calls always go to that front end
+    private final Map<String, FrontEndInterface> uploadFrontEnds = new ConcurrentHashMap<>();
+
+    // Represents a single call that can be made against any front end
+    private interface FrontEndCall<T> {
+        T call(FrontEndInterface frontEnd) throws RemoteException;
+    }
+
+    public FrontEndPool(Registry registry) throws RemoteException {
+        this.registry = registry;
+        refresh();
+    }
+
+    // Looks up every front end in the registry, replacing the current set
+    // Returns the number of front ends found
+    public synchronized int refresh() throws RemoteException {
+        frontEnds.clear();
+
+        for (String name : registry.list()) {
+            if (!name.startsWith(FRONTEND_RMI_NAME)) {
+                continue;
+            }
+
+            try {
+                frontEnds.add((FrontEndInterface) registry.lookup(name));
+                Log.log("Found front end '" + name + "'");
+            } catch (NotBoundException | ClassCastException e) {
+                Log.log("Could not retrieve front end '" + name + "'");
+            }
+        }
+
+        return frontEnds.size();
+    }
+
+    public synchronized int size() {
+        return frontEnds.size();
+    }
+
+    // Takes a snapshot of the front ends so that calls do not hold the lock while waiting on the network
+    // The list is rotated so that successive calls start at different front ends
+    private synchronized List<FrontEndInterface> getCallOrder() {
+        List<FrontEndInterface> order = new ArrayList<>();
+        if (frontEnds.isEmpty()) {
+            return order;
+        }
+
+        int start = Math.floorMod(nextFrontEnd.getAndIncrement(), frontEnds.size());
+        for (int i = 0; i < frontEnds.size(); i++) {
+            order.add(frontEnds.get((start + i) % frontEnds.size()));
+        }
+
+        return order;
+    }
+
+    private synchronized void remove(FrontEndInterface frontEnd) {
+        frontEnds.remove(frontEnd);
+    }
+
+    private <T> T call(FrontEndCall<T> call) throws RemoteException {
+        return call(call, true);
+    }
+
+    // Calls that aren't safe to repeat (idempotent is false) are given up on if they may have reached a front end
+    private <T> T call(FrontEndCall<T> call, boolean idempotent) throws RemoteException {
+        RemoteException lastException = null;
+
+        // Try every front end we know about, then look in the registry again in case front ends have been restarted
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (FrontEndInterface frontEnd : getCallOrder()) {
+                try {
+                    return call.call(frontEnd);
+                } catch (ServerBusyException e) {
+                    // The front end is fine, just overloaded, so keep it and try another
+                    Log.log("Front end is busy, trying the next one");
+                    lastException = e;
+                } catch (RemoteException e) {
+                    remove(frontEnd);
+                    if (!idempotent && !wasNotSent(e)) {
+                        Log.log("Front end failed after the call may have been received, not retrying. " + e.getMessage());
+                        throw e;
+                    }
+                    Log.log("Front end failed, trying the next one. " + e.getMessage());
+                    lastException = e;
+                }
+            }
+
+            // Refreshing won't help if every front end was only busy
+            if (lastException instanceof ServerBusyException || (attempt == 0 && refresh() == 0)) {
+                break;
+            }
+        }
+
+        if (lastException == null) {
+            lastException = new RemoteException("No front ends are available");
+        }
+        throw lastException;
+    }
+
+    // Returns true if the exception means the call never reached the front end
+    private static boolean wasNotSent(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof UnknownHostException
+                || e instanceof NoSuchObjectException || e instanceof StubNotFoundException;
+    }
+
+    @Override
+    public String delete(String filename) throws RemoteException {
+        return call(frontEnd -> frontEnd.delete(filename), false);
+    }
+
+    @Override
+    public Payload download(String filename) throws RemoteException {
+        return call(frontEnd -> frontEnd.download(filename));
+    }
+
+    @Override
+    public boolean fileExists(String filename) throws RemoteException {
+        return call(frontEnd -> frontEnd.fileExists(filename));
+    }
+
+    @Override
+    public String[] list() throws RemoteException {
+        return call(FrontEndInterface::list);
+    }
+
+    @Override
+    public String upload(String filename, Payload data, boolean highReliability) throws RemoteException {
+        return call(frontEnd -> frontEnd.upload(filename, data, highReliability), false);
+    }
+
+    @Override
+    public long size(String filename) throws RemoteException {
+        return call(frontEnd -> frontEnd.size(filename));
+    }
+
+    @Override
+    public Payload downloadRange(String filename, long offset, int length) throws RemoteException {
+        return call(frontEnd -> frontEnd.downloadRange(filename, offset, length));
+    }
+
+    @Override
+    public FilePiece downloadPiece(String filename, String copy, long offset, int length) throws RemoteException {
+        return call(frontEnd -> frontEnd.downloadPiece(filename, copy, offset, length));
+    }
+
+    @Override
+    public String startUpload(String filename, long size, boolean highReliability) throws RemoteException {
+        return call(frontEnd -> {
+            String uploadID = frontEnd.startUpload(filename, size, highReliability);
+            if (uploadID != null) {
+                uploadFrontEnds.put(uploadID, frontEnd);
+            }
+            return uploadID;
+        });
+    }
+
+    // The upload is lost if its front end fails, so there is nothing to fail over to
+    private FrontEndInterface getUploadFrontEnd(String uploadID) throws RemoteException {
+        FrontEndInterface frontEnd = uploadFrontEnds.get(uploadID);
+        if (frontEnd == null) {
+            throw new RemoteException("Unknown upload " + uploadID);
+        }
+        return frontEnd;
+    }
+
+    @Override
+    public boolean uploadChunk(String uploadID, long offset, Payload data) throws RemoteException {
+        FrontEndInterface frontEnd = getUploadFrontEnd(uploadID);
+        try {
+            return frontEnd.uploadChunk(uploadID, offset, data);
+        } catch (ServerBusyException e) {
+            throw e;
+        } catch (RemoteException e) {
+            uploadFrontEnds.remove(uploadID);
+            remove(frontEnd);
+            throw e;
+        }
+    }
+
+    @Override
+    public String finishUpload(String uploadID) throws RemoteException {
+        FrontEndInterface frontEnd = getUploadFrontEnd(uploadID);
+        try {
+            String response = frontEnd.finishUpload(uploadID);
+            uploadFrontEnds.remove(uploadID);
+            return response;
+        } catch (ServerBusyException e) {
+            // The upload is kept so that it can be finished later
+            throw e;
+        } catch (RemoteException e) {
+            uploadFrontEnds.remove(uploadID);
+            remove(frontEnd);
+            throw e;
+        }
+    }
+
+    @Override
+    public void abortUpload(String uploadID) throws RemoteException {
+        FrontEndInterface frontEnd = uploadFrontEnds.remove(uploadID);
+        if (frontEnd != null) {
+            frontEnd.abortUpload(uploadID);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.Arrays;
+
+// Keeps the most recent latencies of an operation so that percentiles can be estimated
+public class LatencyTracker {
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    // Sorted copy of the samples, rebuilt after enough new samples have arrived
+    private long[] sorted = new long[0];
+    private int samplesSinceSort = 0;
+
+    public LatencyTracker(int maxSamples) {
+        this.samples = new long[maxSamples];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        samplesSinceSort++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    // Returns the given percentile (0 - 100) of the recorded latencies in nanoseconds, or -1 if there are no samples
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+
+        // Sorting is the expensive part, so only do it once the samples have changed by a few percent
+        if (sorted.length != count || samplesSinceSort > Math.max(1, count / 20)) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            samplesSinceSort = 0;
+        }
+
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
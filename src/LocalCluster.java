@@ -0,0 +1,261 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+// A registry, file servers and a front end all running in this JVM, with the servers' files in a temporary directory
+// Used by the benchmarking tools so that runs don't depend on (or disturb) a real deployment
+// Servers can instead be run as child JVMs, so that killing one is a real process kill. Server options (server.* and
+// rmi.* system properties) are passed on to them
+public class LocalCluster implements AutoCloseable {
+    private static final String SERVER_RMI_NAME = "FileServer";
+    private static final String FRONTEND_RMI_NAME = "FrontEnd";
+
+    // How long to wait for a child server to bind itself in the registry
+    private static final int CHILD_START_TIMEOUT_MS = 30000;
+
+    private final File baseDir;
+    private final int port;
+    private final Registry registry;
+    private final boolean childProcesses;
+    private final Server[] servers;
+    private final Process[] processes;
+    private final Remote[] unboundStubs;
+    private FrontEnd frontEnd;
+
+    // Starts a registry on a free port and numServers servers (with IDs 1 to numServers) in this JVM
+    public LocalCluster(int numServers) throws IOException {
+        this(numServers, false);
+    }
+
+    // Starts a registry on a free port and numServers servers, in child JVMs if childProcesses is set
+    public LocalCluster(int numServers, boolean childProcesses) throws IOException {
+        this.childProcesses = childProcesses;
+        baseDir = Files.createTempDirectory("local_cluster_").toFile();
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        registry = LocateRegistry.createRegistry(port);
+        log("Started local cluster registry on port " + port + ", files in " + baseDir);
+
+        servers = new Server[numServers];
+        processes = new Process[numServers];
+        unboundStubs = new Remote[numServers];
+        for (int id = 1; id <= numServers; id++) {
+            startServer(id);
+        }
+    }
+
+    // Starts (or restarts) a server. A restarted server keeps the files it had
+    // Returns the server, or null if it runs in a child JVM
+    public synchronized Server startServer(int id) throws RemoteException {
+        stopServer(id);
+        unboundStubs[id - 1] = null;
+
+        if (childProcesses) {
+            startChildServer(id);
+            return null;
+        }
+
+        Server server = new Server(new File(baseDir, "server_files_" + id).getPath() + File.separator);
+        registry.rebind(SERVER_RMI_NAME + id, server);
+        if (server.getFaults() != null) {
+            registry.rebind(Server.FAULT_RMI_NAME + id, server.getFaults());
+        }
+        servers[id - 1] = server;
+        return server;
+    }
+
+    // Runs a server in a child JVM with the same classpath, in the cluster's directory so that its files end up in the
+    // same place as an in-process server's. Its output goes to server_<id>.log
+    private void startChildServer(int id) throws RemoteException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        command.add("-cp");
+        command.add(getAbsoluteClassPath());
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("server.") || name.startsWith("rmi.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("Server");
+        command.add(String.valueOf(id));
+        command.add("localhost");
+        command.add(String.valueOf(port));
+
+        try {
+            processes[id - 1] = new ProcessBuilder(command)
+                    .directory(baseDir)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(baseDir, "server_" + id + ".log"))
+                    .start();
+        } catch (IOException e) {
+            throw new RemoteException("Could not start server " + id, e);
+        }
+
+        // Wait for the server to bind itself
+        long deadline = System.currentTimeMillis() + CHILD_START_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline && processes[id - 1].isAlive()) {
+            try {
+                registry.lookup(SERVER_RMI_NAME + id);
+                return;
+            } catch (NotBoundException e) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        throw new RemoteException("Server " + id + " did not start, see " + new File(baseDir, "server_" + id + ".log"));
+    }
+
+    // The child runs in another directory, so relative classpath entries have to be made absolute
+    private static String getAbsoluteClassPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(new File(entry).getAbsolutePath());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    // Stops a server as if its process had been killed. Calls already in progress are cut off
+    public synchronized void stopServer(int id) {
+        Server server = servers[id - 1];
+        Process process = processes[id - 1];
+        if (server == null && process == null) {
+            return;
+        }
+
+        servers[id - 1] = null;
+        processes[id - 1] = null;
+        try {
+            registry.unbind(SERVER_RMI_NAME + id);
+        } catch (RemoteException | NotBoundException ignored) {
+        }
+        try {
+            registry.unbind(Server.FAULT_RMI_NAME + id);
+        } catch (RemoteException | NotBoundException ignored) {
+        }
+
+        if (process != null) {
+            process.destroyForcibly();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            unexport(server);
+            server.stopChangeFeed();
+        }
+    }
+
+    // Removes a running server from the registry, so that front ends can't find it again if they lose their stub
+    public synchronized void unbindServer(int id) throws RemoteException {
+        try {
+            unboundStubs[id - 1] = registry.lookup(SERVER_RMI_NAME + id);
+            registry.unbind(SERVER_RMI_NAME + id);
+        } catch (NotBoundException ignored) {
+        }
+    }
+
+    // Puts a server removed by unbindServer back in the registry
+    public synchronized void rebindServer(int id) throws RemoteException {
+        if (unboundStubs[id - 1] != null) {
+            registry.rebind(SERVER_RMI_NAME + id, unboundStubs[id - 1]);
+            unboundStubs[id - 1] = null;
+        }
+    }
+
+    // Returns the fault controls of a running server, or null if it isn't running or wasn't started with
+    // -Dserver.faults=true
+    public FaultControl getFaults(int id) throws RemoteException {
+        try {
+            return (FaultControl) registry.lookup(Server.FAULT_RMI_NAME + id);
+        } catch (NotBoundException e) {
+            return null;
+        }
+    }
+
+    // Starts the front end, bound as FrontEnd1. System properties for the front end must be set before this is called
+    public synchronized FrontEnd startFrontEnd() throws RemoteException {
+        frontEnd = new FrontEnd("localhost", port);
+        registry.rebind(FRONTEND_RMI_NAME + 1, frontEnd);
+        return frontEnd;
+    }
+
+    // Returns a stub for the front end, so that calls go through RMI like a real client's
+    public FrontEndInterface getFrontEndStub() throws RemoteException {
+        try {
+            return (FrontEndInterface) registry.lookup(FRONTEND_RMI_NAME + 1);
+        } catch (NotBoundException e) {
+            throw new RemoteException("The front end has not been started", e);
+        }
+    }
+
+    public synchronized FrontEnd getFrontEnd() {
+        return frontEnd;
+    }
+
+    // Returns the server with the given ID, or null if it is stopped or runs in a child JVM
+    public synchronized Server getServer(int id) {
+        return servers[id - 1];
+    }
+
+    public int getNumServers() {
+        return servers.length;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // Stops everything and deletes the servers' files
+    @Override
+    public synchronized void close() {
+        if (frontEnd != null) {
+            frontEnd.stopChangeFeeds();
+            unexport(frontEnd);
+            frontEnd = null;
+        }
+        for (int id = 1; id <= servers.length; id++) {
+            stopServer(id);
+        }
+        unexport(registry);
+
+        deleteRecursively(baseDir);
+    }
+
+    private static void unexport(Remote obj) {
+        try {
+            UnicastRemoteObject.unexportObject(obj, true);
+        } catch (NoSuchObjectException ignored) {
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void log(String msg) {
+        System.out.println(msg);
+    }
+}
@@ -0,0 +1,19 @@
+import javafx.application.Platform;
+import javafx.scene.control.ListView;
+
+// Log shown in the client's window, used by the client's classes
+public class Log {
+    private static ListView<String> list;
+
+    public static void init(ListView<String> list) {
+        Log.list = list;
+    }
+
+    public static void log(String msg) {
+        System.out.println(msg);
+        Platform.runLater(() -> {
+            list.getItems().add(msg);
+            list.scrollTo(list.getItems().size() - 1);
+        });
+    }
+}
@@ -0,0 +1,228 @@
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+
+// A front end's copy of the files on each server, kept up to date from the servers' change feeds so that listings and
+// existence checks can be answered from memory
+// A server's copy is only used while its changes are arriving: it subscribes on first use, and subscribes again after
+// a gap in the sequence numbers, a disconnect, or missing heartbeats. Resubscribing only fetches the changes that were
+// missed, unless the server no longer has them or has restarted, in which case its full listing is fetched
+public class NamespaceView {
+    // A server's copy is stale if nothing (not even a heartbeat) has arrived for this long
+    private static final int STALE_MS = ChangeLog.HEARTBEAT_MS * 3;
+
+    private final ServerView[] views;
+
+    private static class ServerView {
+        final Set<String> files = new HashSet<>();
+        Listener listener;
+
+        // Position in the server's feed. Only valid once hasBase is set
+        boolean hasBase = false;
+        long epoch;
+        long lastSeq;
+
+        // Counts the snapshots and changes taken from the server, so that a change we made ourselves can tell whether
+        // anything newer has arrived since we made it
+        long received;
+
+        // Whether changes are currently being pushed to us, and when we last heard from the server
+        boolean subscribed = false;
+        long lastHeard;
+
+        // Changes pushed while a subscription is being set up, applied once it is
+        boolean subscribing = false;
+        final List<ChangeBatch> pending = new ArrayList<>();
+    }
+
+    // Receives a server's changes. One is exported per server, as servers don't know their own ID
+    private class Listener extends UnicastRemoteObject implements ChangeListener {
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+
+        Listener(int id) throws RemoteException {
+            super(0, new DeadlineSocketFactory(), null);
+            this.id = id;
+        }
+
+        @Override
+        public void changed(ChangeBatch batch) {
+            ServerView view = views[id];
+            synchronized (view) {
+                if (view.subscribing) {
+                    view.pending.add(batch);
+                } else if (view.subscribed) {
+                    apply(view, batch);
+                }
+            }
+        }
+    }
+
+    public NamespaceView(int numServers) {
+        views = new ServerView[numServers];
+        for (int i = 0; i < numServers; i++) {
+            views[i] = new ServerView();
+        }
+    }
+
+    // Returns true if our copy of the server's files is up to date
+    public boolean isLive(int id) {
+        ServerView view = views[id];
+        synchronized (view) {
+            return view.subscribed && System.currentTimeMillis() - view.lastHeard < STALE_MS;
+        }
+    }
+
+    // Subscribes to a server's changes, bringing our copy of its files up to date
+    public void subscribe(int id, ServerInterface server) throws RemoteException {
+        ServerView view = views[id];
+        Listener listener;
+        long epoch;
+        long afterSeq;
+        synchronized (view) {
+            if (view.listener == null) {
+                view.listener = new Listener(id);
+            }
+            listener = view.listener;
+            view.subscribing = true;
+            view.pending.clear();
+            epoch = view.hasBase ? view.epoch : 0;
+            afterSeq = view.hasBase ? view.lastSeq : -1;
+        }
+
+        ChangeBatch batch;
+        try {
+            batch = server.subscribe(listener, epoch, afterSeq);
+        } catch (RemoteException e) {
+            synchronized (view) {
+                view.subscribing = false;
+                view.subscribed = false;
+                view.pending.clear();
+            }
+            throw e;
+        }
+
+        synchronized (view) {
+            view.subscribing = false;
+            if (batch.getSnapshot() != null) {
+                view.files.clear();
+                view.files.addAll(batch.getSnapshot());
+                view.epoch = batch.getEpoch();
+                view.lastSeq = batch.getLastSeq();
+                view.hasBase = true;
+                view.received++;
+            }
+
+            view.subscribed = true;
+            apply(view, batch);
+            for (ChangeBatch pushed : view.pending) {
+                apply(view, pushed);
+            }
+            view.pending.clear();
+        }
+    }
+
+    // Applies changes in sequence order. Changes we already have are skipped, and a gap (or a server restart) means
+    // changes were lost, so the copy stops being used until we subscribe again
+    private void apply(ServerView view, ChangeBatch batch) {
+        if (!view.subscribed) {
+            return;
+        }
+        if (batch.getEpoch() != view.epoch) {
+            view.subscribed = false;
+            return;
+        }
+
+        for (ChangeBatch.Event event : batch.getEvents()) {
+            if (event.getSeq() <= view.lastSeq) {
+                continue;
+            }
+            if (event.getSeq() != view.lastSeq + 1) {
+                view.subscribed = false;
+                return;
+            }
+
+            if (event.isAdded()) {
+                view.files.add(event.getFilename());
+            } else {
+                view.files.remove(event.getFilename());
+            }
+            view.lastSeq = event.getSeq();
+            view.received++;
+        }
+
+        view.lastHeard = System.currentTimeMillis();
+    }
+
+    // Stops using our copy of a server's files, which are kept so that only the missed changes are needed later
+    public void disconnect(int id) {
+        ServerView view = views[id];
+        synchronized (view) {
+            view.subscribed = false;
+        }
+    }
+
+    // Returns our position in a server's changes, to be taken before changing a file on the server and passed to
+    // added() or deleted() afterwards
+    public long mark(int id) {
+        ServerView view = views[id];
+        synchronized (view) {
+            return view.received;
+        }
+    }
+
+    // Records a change we made ourselves, so that it is seen straight away instead of when the server's change arrives
+    // It is only recorded if nothing has arrived from the server since the mark was taken. Anything that has may be
+    // newer than our change (eg. another front end deleting the file we just uploaded), and would never be corrected,
+    // whereas our own change is always on its way in the server's feed
+    public void added(int id, String filename, long mark) {
+        ServerView view = views[id];
+        synchronized (view) {
+            if (view.hasBase && view.received == mark) {
+                view.files.add(filename);
+            }
+        }
+    }
+
+    public void deleted(int id, String filename, long mark) {
+        ServerView view = views[id];
+        synchronized (view) {
+            if (view.hasBase && view.received == mark) {
+                view.files.remove(filename);
+            }
+        }
+    }
+
+    public boolean contains(int id, String filename) {
+        ServerView view = views[id];
+        synchronized (view) {
+            return view.files.contains(filename);
+        }
+    }
+
+    // Returns our copy of the listings on a server
+    public List<String> list(int id) {
+        ServerView view = views[id];
+        synchronized (view) {
+            return new ArrayList<>(view.files);
+        }
+    }
+
+    // Stops receiving changes from every server
+    public void close() {
+        for (ServerView view : views) {
+            synchronized (view) {
+                view.subscribed = false;
+                if (view.listener != null) {
+                    try {
+                        UnicastRemoteObject.unexportObject(view.listener, true);
+                    } catch (NoSuchObjectException ignored) {
+                    }
+                    view.listener = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// File data sent between clients, front ends and servers
+// Received payloads are read into pooled off-heap buffers (see BufferPool) instead of new arrays, so passing large files
+// through a front end makes little garbage. A payload can be shared without copying by taking views of it, which count
+// as references to the same buffer: the buffer goes back to the pool once the payload and every view are released
+// A pooled payload counts towards -Dpayload.receiveMB until it is released. One that never is stops counting only once
+// the payload and all its views have been garbage collected, which can take a while, so payloads should be released
+// The pool holds up to -Dpayload.poolMB of free buffers (default 256)
+// Payloads arriving while the JVM already holds -Dpayload.receiveMB of payloads (default 1024) are read off the stream
+// and dropped rather than stored, so a burst of large calls can't run the JVM out of memory before any of them has been
+// admitted. A payload over -Dpayload.maxMB (default 1024) is dropped the same way whatever else is held, as it could
+// never be received safely. Whoever receives a payload calls checkReceived, which turns a dropped payload into a
+// ServerBusyException
+public class Payload implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final BufferPool POOL = new BufferPool(Math.max(0, Shared.parsePropertyInteger("payload.poolMB", "Payload pool size must be a positive integer", 256)) * 1024L * 1024);
+    private static final long RECEIVE_BYTES = Math.max(1, Shared.parsePropertyInteger("payload.receiveMB", "Receive limit must be a positive integer", 1024)) * 1024L * 1024;
+    private static final int MAX_BYTES = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, Shared.parsePropertyInteger("payload.maxMB", "Payload size limit must be a positive integer", 1024)) * 1024L * 1024);
+
+    // Data is copied to and from the stream through this, as streams only read and write arrays
+    private static final int COPY_CHUNK = 64 * 1024;
+    private static final ThreadLocal<byte[]> copyBuffers = ThreadLocal.withInitial(() -> new byte[COPY_CHUNK]);
+
+    // The buffer and reference count are shared with every view, the position and limit of data are our own
+    private transient Backing backing;
+    private transient ByteBuffer data;
+    private transient AtomicBoolean released;
+    private transient volatile boolean releaseAfterSend;
+
+    // Set if the payload was dropped on arrival, along with the size it would have been
+    private transient boolean dropped;
+    private transient int droppedSize;
+
+    // The pool is the one the buffer goes back to, or null if the buffer isn't pooled. The backing is shared by the
+    // payload and all its views, so it is what the pool's lease is tied to
+    private static class Backing {
+        final ByteBuffer buffer;
+        final BufferPool pool;
+        final BufferPool.Lease lease;
+        final AtomicInteger references = new AtomicInteger(1);
+
+        Backing(ByteBuffer buffer, BufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+            this.lease = pool == null ? null : pool.lease(this, buffer);
+        }
+    }
+
+    private Payload(Backing backing, ByteBuffer data) {
+        this.backing = backing;
+        this.data = data;
+        this.released = new AtomicBoolean();
+    }
+
+    // Wraps an array without copying it. The array must not be changed while the payload is in use
+    public static Payload wrap(byte[] array) {
+        return wrap(array, 0, array.length);
+    }
+
+    public static Payload wrap(byte[] array, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(array, offset, length).slice();
+        return new Payload(new Backing(buffer, null), buffer);
+    }
+
+    // Returns an empty payload of the given size from the pool, to be filled through buffer()
+    public static Payload allocate(int size) {
+        ByteBuffer buffer = POOL.acquire(size);
+        return new Payload(new Backing(buffer, POOL), buffer.slice());
+    }
+
+    // Copies an array into a buffer from the given pool and returns it as a read only payload, for data that is kept
+    // and shared through views (eg. the server's read cache)
+    public static Payload copyOf(byte[] array, BufferPool pool) {
+        ByteBuffer buffer = pool.acquire(array.length);
+        buffer.put(array);
+        buffer.flip();
+        return new Payload(new Backing(buffer, pool), buffer.slice().asReadOnlyBuffer());
+    }
+
+    public int size() {
+        return data.remaining();
+    }
+
+    // Returns the data. The buffer's position and limit can be changed freely, the data itself can't once the payload
+    // has been shared
+    public ByteBuffer buffer() {
+        checkNotReleased();
+        return data.duplicate();
+    }
+
+    // Returns the data as an array, for code that needs one (eg. erasure coding)
+    // The data is copied unless the payload wraps a whole array, in which case that array is returned
+    public byte[] toArray() {
+        checkNotReleased();
+        if (data.hasArray() && data.arrayOffset() == 0 && data.remaining() == data.array().length) {
+            return data.array();
+        }
+
+        byte[] array = new byte[data.remaining()];
+        data.duplicate().get(array);
+        return array;
+    }
+
+    // Returns another reference to the same data, which must be released separately
+    public Payload view() {
+        return slice(0, size());
+    }
+
+    // Like view, but returns null rather than failing if the payload has already been released, for payloads that
+    // another thread may release at any moment. The buffer can't go back to the pool while the view holds it
+    public Payload tryView() {
+        if (dropped || released.get()) {
+            return null;
+        }
+
+        while (true) {
+            int references = backing.references.get();
+            if (references == 0) {
+                return null;
+            }
+            if (backing.references.compareAndSet(references, references + 1)) {
+                return new Payload(backing, data.duplicate());
+            }
+        }
+    }
+
+    // Returns a reference to part of the data, which must be released separately
+    public Payload slice(int offset, int length) {
+        checkNotReleased();
+        if (offset < 0 || length < 0 || offset + length > size()) {
+            throw new IndexOutOfBoundsException(String.format("Slice of %,d bytes at %,d is outside the payload (%,d bytes)", length, offset, size()));
+        }
+
+        backing.references.incrementAndGet();
+        ByteBuffer view = data.duplicate();
+        view.position(data.position() + offset);
+        view.limit(data.position() + offset + length);
+        return new Payload(backing, view.slice());
+    }
+
+    // Drops this reference. The buffer is returned to the pool when the last reference is dropped
+    // Releasing more than once has no effect
+    public void release() {
+        if (released.compareAndSet(false, true) && backing.references.decrementAndGet() == 0 && backing.pool != null) {
+            backing.pool.release(backing.buffer, backing.lease);
+        }
+    }
+
+    // Releases the payload once it has been sent, for payloads returned from remote calls, which have no other chance
+    // to be released. Returns the payload
+    public Payload releaseAfterSend() {
+        releaseAfterSend = true;
+        return this;
+    }
+
+    // Throws a ServerBusyException (and releases the payload) if it was dropped on arrival for lack of memory, so that
+    // the sender can try again later or elsewhere. Returns the payload
+    public Payload checkReceived() throws ServerBusyException {
+        if (dropped) {
+            release();
+            if (droppedSize > MAX_BYTES) {
+                throw new ServerBusyException(String.format("Payload of %,d bytes is over the limit of %,d bytes per call, send it in pieces", droppedSize, MAX_BYTES));
+            }
+            throw new ServerBusyException(String.format("Busy, retry later: not enough memory to receive %,d bytes", droppedSize));
+        }
+        return this;
+    }
+
+    public static BufferPool getPool() {
+        return POOL;
+    }
+
+    // The largest payload that can be received in one call
+    public static int getMaxBytes() {
+        return MAX_BYTES;
+    }
+
+    private void checkNotReleased() {
+        if (dropped) {
+            throw new IllegalStateException("Payload was dropped on arrival (see checkReceived)");
+        }
+        if (released.get()) {
+            throw new IllegalStateException("Payload has been released");
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        try {
+            checkNotReleased();
+            out.defaultWriteObject();
+            ByteBuffer source = data.duplicate();
+            out.writeInt(source.remaining());
+
+            if (source.hasArray()) {
+                out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+                return;
+            }
+
+            byte[] chunk = copyBuffers.get();
+            while (source.hasRemaining()) {
+                int count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        } finally {
+            if (releaseAfterSend) {
+                release();
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new InvalidObjectException("Payload size is negative");
+        }
+
+        released = new AtomicBoolean();
+        ByteBuffer buffer = size <= MAX_BYTES ? POOL.tryAcquire(size, RECEIVE_BYTES) : null;
+        if (buffer == null) {
+            skip(in, size);
+            dropped = true;
+            droppedSize = size;
+            data = ByteBuffer.allocate(0);
+            backing = new Backing(data, null);
+            return;
+        }
+
+        try {
+            byte[] chunk = copyBuffers.get();
+            while (buffer.hasRemaining()) {
+                int count = Math.min(chunk.length, buffer.remaining());
+                in.readFully(chunk, 0, count);
+                buffer.put(chunk, 0, count);
+            }
+        } catch (IOException | RuntimeException e) {
+            POOL.release(buffer);
+            throw e;
+        }
+
+        buffer.flip();
+        backing = new Backing(buffer, POOL);
+        data = buffer.slice();
+    }
+
+    // Reads past data that isn't being kept, so that the rest of the call can still be read
+    private static void skip(ObjectInputStream in, int size) throws IOException {
+        byte[] chunk = copyBuffers.get();
+        for (int remaining = size; remaining > 0; ) {
+            int count = Math.min(chunk.length, remaining);
+            in.readFully(chunk, 0, count);
+            remaining -= count;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+// Background thread that logs how the payload pool (see Payload) is being used, along with the garbage collections
+// over the same period, so the effect of pooling on GC pressure can be seen
+// Each line gives the rate of new buffer allocations and of buffers reused from the pool since the last line, the
+// bytes in use and held free by the pool, the bytes of payloads that were never released (in total), and the number and
+// time of collections since the last line
+// The pool is shared by everything in the JVM, so with a LocalCluster the servers' payloads are counted as well
+public class PayloadStats extends Thread {
+    private final int intervalMs;
+
+    public PayloadStats(int intervalMs) {
+        super("payload-stats");
+        setDaemon(true);
+        this.intervalMs = intervalMs;
+    }
+
+    @Override
+    public void run() {
+        BufferPool pool = Payload.getPool();
+        long lastAllocated = pool.getAllocatedBytes();
+        long lastReused = pool.getReusedBytes();
+        long lastCollections = getCollections();
+        long lastCollectionMs = getCollectionMs();
+        long lastTime = System.nanoTime();
+
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long allocated = pool.getAllocatedBytes();
+            long reused = pool.getReusedBytes();
+            long collections = getCollections();
+            long collectionMs = getCollectionMs();
+            long time = System.nanoTime();
+            double seconds = Math.max(1, time - lastTime) / 1e9;
+
+            log(String.format("Payload pool: allocating %,.1fMB/s, reusing %,.1fMB/s, %,.1fMB in use, %,.1fMB free, %,.1fMB never released. GC: %,d collections taking %,dms",
+                    (allocated - lastAllocated) / seconds / (1024 * 1024), (reused - lastReused) / seconds / (1024 * 1024),
+                    pool.getInUseBytes() / (1024.0 * 1024), pool.getPooledBytes() / (1024.0 * 1024), pool.getLeakedBytes() / (1024.0 * 1024),
+                    collections - lastCollections, collectionMs - lastCollectionMs));
+
+            lastAllocated = allocated;
+            lastReused = reused;
+            lastCollections = collections;
+            lastCollectionMs = collectionMs;
+            lastTime = time;
+        }
+    }
+
+    // Collectors report -1 if they don't keep a count
+    private static long getCollections() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long getCollectionMs() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    private void log(String msg) {
+        System.out.println(msg);
+    }
+}
@@ -0,0 +1,221 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Off-heap cache of frequently downloaded files, so hot files are served without going to disk
+// Entries are kept in least recently used order. A file is only admitted if it has been requested more often than
+// the entry it would evict (estimated with a small count-min sketch), which stops a one-off scan over many files
+// from flushing out the working set
+// Hits take no lock: they look the entry up in a concurrent map and return a view of its buffer, so a hot file is sent
+// straight from the cache without being copied. Only admission, eviction and invalidation are serialised
+public class ReadCache {
+    private static final int SKETCH_ROWS = 4;
+    private static final long[] SKETCH_SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final BufferPool bufferPool;
+
+    // Entries are charged for the capacity of their buffers, which are rounded up to a power of two, rather than the
+    // size of the file, so that the cache never holds more memory than its budget
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private long residentBytes = 0;
+
+    // Frequency sketch. Counters are halved every sampleSize accesses so that old popularity fades
+    private final AtomicIntegerArray[] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private final AtomicInteger accesses = new AtomicInteger();
+
+    // Bumped on every invalidation, so that a read that raced with a write is not cached
+    private volatile long version = 0;
+
+    // Metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long evictions = 0;
+    private long rejections = 0;
+
+    // The cache holds one reference to the payload, every hit returns another
+    // The last access time stands in for least recently used order, which would need a lock on every hit to maintain
+    private static class Entry {
+        final Payload payload;
+        final long capacity;
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(Payload payload, long capacity) {
+            this.payload = payload;
+            this.capacity = capacity;
+        }
+    }
+
+    public ReadCache(long maxBytes, int expectedEntries) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+        this.bufferPool = new BufferPool(maxBytes / 8);
+
+        int width = Integer.highestOneBit(Math.max(expectedEntries, 64) * 4 - 1) << 1;
+        this.sketch = new AtomicIntegerArray[SKETCH_ROWS];
+        for (int row = 0; row < SKETCH_ROWS; row++) {
+            sketch[row] = new AtomicIntegerArray(width);
+        }
+        this.sketchMask = width - 1;
+        this.sampleSize = width * 8;
+    }
+
+    // Reads the budget from -Dserver.cache.MB (0 disables the cache)
+    public static ReadCache fromProperties() {
+        int cacheMB = Shared.parsePropertyInteger("server.cache.MB", "Cache size must be a positive integer", 64);
+        if (cacheMB == 0) {
+            return null;
+        }
+        return new ReadCache(cacheMB * 1024L * 1024L, 4096);
+    }
+
+    // Returns a read only view of the cached file, which the caller must release, or null if it isn't cached
+    // Every call counts as an access for admission purposes
+    public Payload get(String filename) {
+        increment(filename);
+
+        // The entry may be invalidated between being found and being viewed, in which case it is a miss
+        Entry entry = entries.get(filename);
+        Payload view = entry != null ? entry.payload.tryView() : null;
+        if (view == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        entry.lastAccess = System.nanoTime();
+        hits.incrementAndGet();
+        return view;
+    }
+
+    // Returns the current version, to be passed to put() after reading the file from disk
+    public long getVersion() {
+        return version;
+    }
+
+    // Offers a file that was read from disk to the cache
+    // Ignored if the cache was invalidated since readVersion, the file is too big, or it isn't popular enough
+    public synchronized void put(String filename, byte[] data, long readVersion) {
+        long capacity = BufferPool.capacityFor(data.length);
+        if (readVersion != version || capacity > maxEntryBytes || entries.containsKey(filename)) {
+            return;
+        }
+
+        // Evict least recently used entries until there is room, but only if the new file is more popular
+        List<Map.Entry<String, Entry>> victims = new ArrayList<>();
+        if (residentBytes + capacity > maxBytes) {
+            List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().lastAccess));
+
+            int frequency = estimate(filename);
+            long freed = 0;
+            for (Map.Entry<String, Entry> victim : candidates) {
+                if (residentBytes - freed + capacity <= maxBytes) {
+                    break;
+                }
+                if (estimate(victim.getKey()) >= frequency) {
+                    rejections++;
+                    return;
+                }
+                victims.add(victim);
+                freed += victim.getValue().capacity;
+            }
+        }
+
+        // Remove the victims now that we know the file is being admitted. Hits still holding views keep their buffers
+        // until they are released
+        for (Map.Entry<String, Entry> victim : victims) {
+            remove(victim.getKey());
+            evictions++;
+        }
+
+        entries.put(filename, new Entry(Payload.copyOf(data, bufferPool), capacity));
+        residentBytes += capacity;
+    }
+
+    // Removes a file that has been changed or deleted
+    public synchronized void invalidate(String filename) {
+        version++;
+        remove(filename);
+    }
+
+    private void remove(String filename) {
+        Entry entry = entries.remove(filename);
+        if (entry != null) {
+            residentBytes -= entry.capacity;
+            entry.payload.release();
+        }
+    }
+
+    private void increment(String filename) {
+        for (int row = 0; row < SKETCH_ROWS; row++) {
+            sketch[row].getAndUpdate(index(filename, row), count -> count < Integer.MAX_VALUE ? count + 1 : count);
+        }
+
+        // Age the counts. Only the access that reaches the sample size does it, others carry on counting meanwhile
+        if (accesses.incrementAndGet() == sampleSize) {
+            for (AtomicIntegerArray counters : sketch) {
+                for (int i = 0; i < counters.length(); i++) {
+                    counters.getAndUpdate(i, count -> count >>> 1);
+                }
+            }
+            accesses.addAndGet(-sampleSize);
+        }
+    }
+
+    private int estimate(String filename) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < SKETCH_ROWS; row++) {
+            min = Math.min(min, sketch[row].get(index(filename, row)));
+        }
+        return min;
+    }
+
+    // Each row hashes the whole name with its own seed, so that names colliding in one row are unlikely to collide in
+    // the others (which they always would if every row was derived from the same 32 bit hash code)
+    private int index(String filename, int row) {
+        long h = SKETCH_SEEDS[row];
+        for (int i = 0; i < filename.length(); i++) {
+            h = (h ^ filename.charAt(i)) * 0x100000001B3L;
+        }
+
+        // Final mix from MurmurHash3, so that every bit of the hash affects the low bits used for the index
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h & sketchMask;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,411 @@
+import java.rmi.RemoteException;
+import java.util.*;
+
+// Background thread run by one front end that moves files between servers
+// Each pass it looks at the listings and stats of the live servers and:
+// - Logs servers that have joined or left
+// - After a server has joined or left, copies files that have fewer copies than they used to (eg. after a server was
+//   wiped or replaced) onto servers that don't have them
+// - Moves files from the fullest server to the emptiest one when bytes used differ by more than skewPercent of the mean
+// Files are sent directly between servers in pieces of COPY_CHUNK_BYTES. Copying is throttled to a fixed bandwidth and
+// paused while the servers involved are busy, so foreground requests are not slowed down
+// A copy is pinned to the version of the file on the source when it started. Pieces are only sent while the file is
+// at that version, and the target only stores the copy if a client hasn't stored the file there meanwhile
+public class Rebalancer extends Thread {
+    private static final int COPY_CHUNK_BYTES = 1024 * 1024;
+
+    private final FrontEnd frontEnd;
+    private final int intervalMs;
+    private final long bytesPerSecond;
+    private final int skewPercent;
+    private final int maxMovesPerPass;
+    private final int maxActiveOperations;
+
+    // Highest number of copies seen for each file. The front end doesn't record how many copies a file should have,
+    // so this is how we notice that copies have been lost
+    // Copies can only be lost with a server, so files are only copied after a server has joined or left. A file that
+    // disappears from a server that stayed up was deleted by a client: its target is forgotten and relearned from the
+    // copies that are left, so that a delete (or one still in progress) is never undone by copying the file back
+    private final Map<String, Integer> replicaTargets = new HashMap<>();
+    private Set<Integer> liveServers = new HashSet<>();
+    private Map<Integer, Set<String>> lastListings = new HashMap<>();
+    private boolean replicationPending = false;
+
+    // Copies deleted by our own moves since the last pass, which weren't deleted by clients
+    private final Map<Integer, Set<String>> movedAway = new HashMap<>();
+
+    public Rebalancer(FrontEnd frontEnd, int intervalMs) {
+        super("rebalancer");
+        setDaemon(true);
+
+        this.frontEnd = frontEnd;
+        this.intervalMs = intervalMs;
+        this.bytesPerSecond = Math.max(1, Shared.parsePropertyInteger("frontend.rebalance.KBps", "Rebalance bandwidth must be a positive integer", 10240)) * 1024L;
+        this.skewPercent = Shared.parsePropertyInteger("frontend.rebalance.skewPercent", "Skew percentage must be a positive integer", 20);
+        this.maxMovesPerPass = Shared.parsePropertyInteger("frontend.rebalance.maxMoves", "Maximum moves must be a positive integer", 100);
+        this.maxActiveOperations = Shared.parsePropertyInteger("frontend.rebalance.maxActive", "Maximum active operations must be a positive integer", 4);
+    }
+
+    @Override
+    public void run() {
+        log("Rebalancer started, checking servers every " + intervalMs + "ms");
+
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+                runPass();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log("Rebalance pass failed: " + e.toString());
+            }
+        }
+    }
+
+    private void runPass() throws InterruptedException {
+        // Fetch listings and stats from every live server
+        Map<Integer, Set<String>> listings = new HashMap<>();
+        Map<Integer, Long> bytesUsed = new HashMap<>();
+        for (int id = 0; id < frontEnd.getServerCount(); id++) {
+            ServerInterface server = frontEnd.getServer(id);
+            if (server == null) { continue; }
+
+            try {
+                listings.put(id, new HashSet<>(server.list()));
+                bytesUsed.put(id, server.stats().getBytesUsed());
+            } catch (RemoteException e) {
+                frontEnd.reportServerError(id, e);
+                listings.remove(id);
+            }
+        }
+
+        // Membership changes
+        for (int id : listings.keySet()) {
+            if (!liveServers.contains(id)) {
+                log("Server " + (id + 1) + " has joined");
+                replicationPending = true;
+            }
+        }
+        for (int id : liveServers) {
+            if (!listings.containsKey(id)) {
+                log("Server " + (id + 1) + " has left");
+                replicationPending = true;
+            }
+        }
+
+        // Files gone from servers that were up for both passes have been deleted
+        for (Map.Entry<Integer, Set<String>> entry : listings.entrySet()) {
+            Set<String> before = liveServers.contains(entry.getKey()) ? lastListings.get(entry.getKey()) : null;
+            if (before == null) { continue; }
+
+            Set<String> moved = movedAway.getOrDefault(entry.getKey(), Collections.emptySet());
+            for (String filename : before) {
+                if (!entry.getValue().contains(filename) && !moved.contains(filename)) {
+                    replicaTargets.remove(filename);
+                }
+            }
+        }
+        movedAway.clear();
+
+        liveServers = new HashSet<>(listings.keySet());
+        lastListings = new HashMap<>();
+        for (Map.Entry<Integer, Set<String>> entry : listings.entrySet()) {
+            lastListings.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+
+        if (listings.size() < 2) {
+            return;
+        }
+
+        // Find which servers hold each file
+        Map<String, List<Integer>> holders = new HashMap<>();
+        for (Map.Entry<Integer, Set<String>> entry : listings.entrySet()) {
+            for (String listing : entry.getValue()) {
+                holders.computeIfAbsent(listing, k -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        replicaTargets.keySet().retainAll(holders.keySet());
+
+        // Replication stays pending until a pass has made every copy it needed
+        List<Move> moves = new ArrayList<>();
+        boolean replicationPlanned = planReplication(listings, holders, bytesUsed, moves);
+        planRebalance(listings, bytesUsed, moves);
+
+        if (moves.isEmpty()) {
+            replicationPending = replicationPending && !replicationPlanned;
+            return;
+        }
+
+        log(String.format("Rebalancer planned %,d copies/moves", moves.size()));
+        boolean allMoved = executeMoves(moves);
+        replicationPending = replicationPending && !(replicationPlanned && allMoved);
+    }
+
+    // Plans copies for files that have fewer copies than we have seen before, if a server has joined or left
+    // Returns false if there were more copies to make than could be planned this pass
+    private boolean planReplication(Map<Integer, Set<String>> listings, Map<String, List<Integer>> holders, Map<Integer, Long> bytesUsed, List<Move> moves) {
+        for (Map.Entry<String, List<Integer>> entry : holders.entrySet()) {
+            String filename = entry.getKey();
+            List<Integer> servers = entry.getValue();
+
+            int target = Math.max(replicaTargets.getOrDefault(filename, 0), servers.size());
+            replicaTargets.put(filename, target);
+            if (!replicationPending) {
+                continue;
+            }
+            if (moves.size() >= maxMovesPerPass) {
+                return false;
+            }
+
+            int wanted = Math.min(target, listings.size()) - servers.size();
+            for (int i = 0; i < wanted && moves.size() < maxMovesPerPass; i++) {
+                Integer destination = emptiestServer(listings, bytesUsed, filename);
+                if (destination == null) {
+                    break;
+                }
+
+                moves.add(new Move(filename, servers.get(0), destination, false));
+                listings.get(destination).add(filename);
+                servers.add(destination);
+            }
+        }
+        return true;
+    }
+
+    // Plans moves from the fullest server to the emptiest one
+    private void planRebalance(Map<Integer, Set<String>> listings, Map<Integer, Long> bytesUsed, List<Move> moves) {
+        int fullest = Collections.max(bytesUsed.entrySet(), Map.Entry.comparingByValue()).getKey();
+        int emptiest = Collections.min(bytesUsed.entrySet(), Map.Entry.comparingByValue()).getKey();
+
+        long total = 0;
+        for (long bytes : bytesUsed.values()) {
+            total += bytes;
+        }
+        long mean = total / bytesUsed.size();
+        long gap = bytesUsed.get(fullest) - bytesUsed.get(emptiest);
+        if (gap == 0 || gap * 100 <= (long) skewPercent * mean) {
+            return;
+        }
+
+        log(String.format("Servers are skewed: server %d has %,d bytes, server %d has %,d bytes", fullest + 1, bytesUsed.get(fullest), emptiest + 1, bytesUsed.get(emptiest)));
+
+        // Moving half the gap evens the two servers out
+        ServerInterface source = frontEnd.getServer(fullest);
+        if (source == null) {
+            return;
+        }
+
+        long toMove = gap / 2;
+        for (String filename : new ArrayList<>(listings.get(fullest))) {
+            if (toMove <= 0 || moves.size() >= maxMovesPerPass) {
+                break;
+            }
+            if (!canPlace(listings.get(emptiest), filename)) {
+                continue;
+            }
+
+            try {
+                long size = source.size(filename);
+                if (size <= 0 || size > toMove) {
+                    continue;
+                }
+
+                moves.add(new Move(filename, fullest, emptiest, true));
+                listings.get(emptiest).add(filename);
+                toMove -= size;
+            } catch (RemoteException e) {
+                frontEnd.reportServerError(fullest, e);
+                return;
+            }
+        }
+    }
+
+    // Returns the live server with the fewest bytes that can take the file, or null if none can
+    private Integer emptiestServer(Map<Integer, Set<String>> listings, Map<Integer, Long> bytesUsed, String filename) {
+        Integer best = null;
+        for (int id : listings.keySet()) {
+            if (canPlace(listings.get(id), filename) && (best == null || bytesUsed.get(id) < bytesUsed.get(best))) {
+                best = id;
+            }
+        }
+        return best;
+    }
+
+    // A server can take a file if it doesn't already have it. A shard also can't go to a server holding another shard
+    // of the same file, as losing that server would then lose two shards
+    private static boolean canPlace(Set<String> listing, String filename) {
+        if (listing.contains(filename)) {
+            return false;
+        }
+
+        String baseName = FrontEnd.getFileName(filename);
+        if (baseName.equals(filename)) {
+            return true;
+        }
+        for (String other : listing) {
+            if (!other.equals(FrontEnd.getFileName(other)) && FrontEnd.getFileName(other).equals(baseName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns true if every move was made
+    private boolean executeMoves(List<Move> moves) throws InterruptedException {
+        List<Move> toDelete = new ArrayList<>();
+        boolean allMoved = true;
+
+        for (Move move : moves) {
+            ServerInterface source = frontEnd.getServer(move.source);
+            ServerInterface destination = frontEnd.getServer(move.destination);
+            if (source == null || destination == null) {
+                allMoved = false;
+                continue;
+            }
+
+            try {
+                // Check again just before copying, as a client may have deleted or stored the file since the listing
+                // The version is read first, so that a change after it is caught while copying
+                long version = source.version(move.filename);
+                long size = source.size(move.filename);
+                if (version < 0 || size < 0 || destination.fileExists(move.filename)) {
+                    log("Skipping " + move.filename + ", it has changed since the servers were listed");
+                    continue;
+                }
+
+                long copiedVersion = copy(move, source, destination, version, size);
+                if (copiedVersion < 0) {
+                    log("Could not copy " + move.filename + " from server " + (move.source + 1) + " to server " + (move.destination + 1));
+                    allMoved = false;
+                    continue;
+                }
+
+                // The file may have been written or deleted on the source after the last piece was sent, in which case
+                // the copy is out of date. It is only removed if nobody has written to it since it was stored
+                if (source.version(move.filename) != version) {
+                    log("Removing the copy of " + move.filename + " from server " + (move.destination + 1) + ", it changed while it was being copied");
+                    destination.delete(move.filename, copiedVersion);
+                    allMoved = false;
+                    continue;
+                }
+
+                frontEnd.reportFileCopied(move.destination, move.filename);
+                if (move.deleteSource) {
+                    move.sourceVersion = version;
+                    move.copiedVersion = copiedVersion;
+                    toDelete.add(move);
+                }
+            } catch (ServerBusyException e) {
+                log("Server busy, skipping " + move.filename);
+                allMoved = false;
+            } catch (RemoteException e) {
+                log("Error copying " + move.filename + ". " + e.getMessage());
+                allMoved = false;
+            }
+        }
+
+        if (toDelete.isEmpty()) {
+            return allMoved;
+        }
+
+        // Other front ends only see the new copies once they refresh their filters, so give them time before the old
+        // copies go away
+        Thread.sleep(frontEnd.getFilterRefreshMs());
+
+        // The source copy is only deleted if both copies are still the one that was copied. If a client has since
+        // deleted or overwritten the file, deleting the source would lose their change or leave the old data behind
+        int numMoved = 0;
+        for (Move move : toDelete) {
+            ServerInterface source = frontEnd.getServer(move.source);
+            ServerInterface destination = frontEnd.getServer(move.destination);
+            if (source == null || destination == null) { continue; }
+
+            try {
+                if (destination.version(move.filename) != move.copiedVersion) {
+                    log("Keeping " + move.filename + " on server " + (move.source + 1) + ", the new copy has changed");
+                    continue;
+                }
+            } catch (RemoteException e) {
+                frontEnd.reportServerError(move.destination, e);
+                continue;
+            }
+
+            try {
+                if (source.delete(move.filename, move.sourceVersion) != 1) {
+                    log("Keeping " + move.filename + " on server " + (move.source + 1) + ", it changed while it was being moved");
+                    continue;
+                }
+
+                movedAway.computeIfAbsent(move.source, k -> new HashSet<>()).add(move.filename);
+                numMoved++;
+            } catch (RemoteException e) {
+                frontEnd.reportServerError(move.source, e);
+            }
+        }
+
+        log(String.format("Rebalancer moved %,d files", numMoved));
+        return allMoved;
+    }
+
+    // Copies a file in pieces, waiting for the servers to be quiet before each piece and throttling to the configured
+    // bandwidth after it. Returns the version of the new copy, or -1 if the file changed or the copy failed
+    private long copy(Move move, ServerInterface source, ServerInterface destination, long version, long size) throws RemoteException, InterruptedException {
+        String copyID = destination.startCopy(move.filename, size);
+        if (copyID == null) {
+            return -1;
+        }
+
+        boolean sent = false;
+        try {
+            for (long offset = 0; offset < size; offset += COPY_CHUNK_BYTES) {
+                // Leave the servers alone while they are busy with client requests
+                waitUntilQuiet(source);
+                waitUntilQuiet(destination);
+
+                int length = (int) Math.min(COPY_CHUNK_BYTES, size - offset);
+                if (!source.copyRangeTo(move.filename, version, offset, length, destination, copyID)) {
+                    return -1;
+                }
+                Thread.sleep(length * 1000L / bytesPerSecond);
+            }
+
+            sent = true;
+            return destination.commitCopy(copyID);
+        } finally {
+            // The destination abandons the copy by itself if it can't be reached now
+            if (!sent) {
+                try {
+                    destination.abortCopy(copyID);
+                } catch (RemoteException e) {
+                    log("Could not abort copy of " + move.filename + ". " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void waitUntilQuiet(ServerInterface server) throws RemoteException, InterruptedException {
+        for (int attempt = 0; attempt < 10 && server.stats().getActiveOperations() > maxActiveOperations; attempt++) {
+            Thread.sleep(100);
+        }
+    }
+
+    private void log(String msg) {
+        System.out.println(msg);
+    }
+
+    private static class Move {
+        final String filename;
+        final int source;
+        final int destination;
+        final boolean deleteSource;
+        long sourceVersion = -1;
+        long copiedVersion = -1;
+
+        Move(String filename, int source, int destination, boolean deleteSource) {
+            this.filename = filename;
+            this.source = source;
+            this.destination = destination;
+            this.deleteSource = deleteSource;
+        }
+    }
+}
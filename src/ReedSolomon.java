@@ -0,0 +1,287 @@
+import java.nio.ByteBuffer;
+
+// Reed-Solomon erasure coding over GF(2^8)
+// A file is split into k data shards and m parity shards. The file can be rebuilt from any k of the k + m shards
+// The encoding matrix is systematic (the data shards are the file itself) with a Cauchy matrix for the parity rows,
+// which guarantees that any k rows of the matrix can be inverted
+public class ReedSolomon {
+    // Every shard starts with a header so that it can be decoded without knowing how the front end was configured
+    // Data shards, parity shards, shard index, original file length, generation
+    // The generation is chosen by the uploader and is the same for every shard of one upload, so that shards left
+    // behind by an earlier upload of the same file are never decoded together with the current ones
+    public static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+
+    private static final int FIELD_SIZE = 256;
+    private static final int GENERATOR_POLYNOMIAL = 0x11D;
+    private static final int[] EXP = new int[FIELD_SIZE * 2];
+    private static final int[] LOG = new int[FIELD_SIZE];
+
+    private final int dataShards;
+    private final int parityShards;
+    private final int[][] matrix;
+
+    // Build the log/antilog tables used for multiplication and division
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= GENERATOR_POLYNOMIAL;
+            }
+        }
+
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+    }
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Invalid shard counts: " + dataShards + "+" + parityShards);
+        }
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        // Identity for the data rows, Cauchy matrix 1 / (x + y) for the parity rows
+        matrix = new int[dataShards + parityShards][dataShards];
+        for (int row = 0; row < dataShards; row++) {
+            matrix[row][row] = 1;
+        }
+        for (int row = 0; row < parityShards; row++) {
+            for (int col = 0; col < dataShards; col++) {
+                matrix[dataShards + row][col] = divide(1, (dataShards + row) ^ col);
+            }
+        }
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    // Splits data into k + m shards, each prefixed with a header
+    public byte[][] encode(byte[] data, long generation) {
+        int shardSize = (int) getShardSize(data.length);
+        byte[][] shards = new byte[getTotalShards()][HEADER_SIZE + shardSize];
+
+        // Copy data into the data shards, the last shard is padded with zeros
+        for (int i = 0; i < dataShards; i++) {
+            int start = i * shardSize;
+            int length = Math.max(0, Math.min(shardSize, data.length - start));
+            System.arraycopy(data, Math.min(start, data.length), shards[i], HEADER_SIZE, length);
+        }
+
+        // Compute parity
+        for (int row = dataShards; row < getTotalShards(); row++) {
+            byte[] parity = shards[row];
+            for (int col = 0; col < dataShards; col++) {
+                int coefficient = matrix[row][col];
+                byte[] input = shards[col];
+                for (int b = HEADER_SIZE; b < parity.length; b++) {
+                    parity[b] ^= multiply(coefficient, input[b] & 0xFF);
+                }
+            }
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            ByteBuffer.wrap(shards[i]).putInt(dataShards).putInt(parityShards).putInt(i).putLong(data.length).putLong(generation);
+        }
+
+        return shards;
+    }
+
+    // Rebuilds the original data from the shards
+    // Missing shards should be null, at least k shards of the same generation must be present
+    // Returns null if there are not enough shards or the shards do not belong together
+    public byte[] decode(byte[][] shards) {
+        int[] rows = new int[dataShards];
+        byte[][] inputs = new byte[dataShards][];
+        long length = -1;
+        long generation = 0;
+        int shardSize = -1;
+
+        // Pick the first k valid shards
+        int found = 0;
+        for (int i = 0; i < shards.length && i < getTotalShards() && found < dataShards; i++) {
+            byte[] shard = shards[i];
+            if (shard == null || shard.length <= HEADER_SIZE) {
+                continue;
+            }
+
+            ByteBuffer header = ByteBuffer.wrap(shard);
+            if (header.getInt() != dataShards || header.getInt() != parityShards || header.getInt() != i) {
+                continue;
+            }
+
+            long shardLength = header.getLong();
+            long shardGeneration = header.getLong();
+            if (length == -1) {
+                length = shardLength;
+                generation = shardGeneration;
+                shardSize = shard.length - HEADER_SIZE;
+            } else if (length != shardLength || generation != shardGeneration || shardSize != shard.length - HEADER_SIZE) {
+                continue;
+            }
+
+            rows[found] = i;
+            inputs[found] = shard;
+            found++;
+        }
+
+        if (found < dataShards) {
+            return null;
+        }
+
+        // Invert the rows of the encoding matrix that match the shards we have, then multiply to get the data back
+        int[][] subMatrix = new int[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            subMatrix[i] = matrix[rows[i]].clone();
+        }
+        int[][] decodeMatrix = invert(subMatrix);
+
+        byte[] data = new byte[(int) length];
+        for (int row = 0; row < dataShards; row++) {
+            int start = row * shardSize;
+            int count = Math.max(0, Math.min(shardSize, data.length - start));
+            if (count == 0) {
+                break;
+            }
+
+            // Data shards that survived can be copied straight out
+            if (rows[row] == row && isIdentityRow(decodeMatrix[row], row)) {
+                System.arraycopy(inputs[row], HEADER_SIZE, data, start, count);
+                continue;
+            }
+
+            for (int col = 0; col < dataShards; col++) {
+                int coefficient = decodeMatrix[row][col];
+                if (coefficient == 0) {
+                    continue;
+                }
+
+                byte[] input = inputs[col];
+                for (int b = 0; b < count; b++) {
+                    data[start + b] ^= multiply(coefficient, input[HEADER_SIZE + b] & 0xFF);
+                }
+            }
+        }
+
+        return data;
+    }
+
+    // Reads the shard index from a shard header, or -1 if the shard is too short
+    public static int readShardIndex(byte[] shard) {
+        if (shard == null || shard.length < HEADER_SIZE) {
+            return -1;
+        }
+        return ByteBuffer.wrap(shard, 8, 4).getInt();
+    }
+
+    // Reads the generation of the upload that a shard belongs to from its header, or -1 if the shard is too short
+    public static long readGeneration(byte[] shard) {
+        if (shard == null || shard.length < HEADER_SIZE) {
+            return -1;
+        }
+        return ByteBuffer.wrap(shard, 20, 8).getLong();
+    }
+
+    // Reads the length of the original file from a shard header
+    // Returns -1 if the header is too short or the shard was encoded with different settings
+    public long readLength(byte[] shard) {
+        if (shard == null || shard.length < HEADER_SIZE) {
+            return -1;
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(shard);
+        if (header.getInt() != dataShards || header.getInt() != parityShards) {
+            return -1;
+        }
+        header.getInt();
+        return header.getLong();
+    }
+
+    // Returns the number of bytes of the original file held by each data shard. Data shard i holds bytes
+    // i * shardSize to (i + 1) * shardSize of the file, after the header
+    public long getShardSize(long length) {
+        return Math.max(1, (length + dataShards - 1) / dataShards);
+    }
+
+    private static boolean isIdentityRow(int[] row, int index) {
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] != (i == index ? 1 : 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Gauss-Jordan elimination in GF(2^8)
+    private static int[][] invert(int[][] m) {
+        int size = m.length;
+        int[][] result = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            result[i][i] = 1;
+        }
+
+        for (int col = 0; col < size; col++) {
+            // Find a pivot and swap it into place
+            int pivot = col;
+            while (m[pivot][col] == 0) {
+                pivot++;
+                if (pivot == size) {
+                    throw new IllegalArgumentException("Matrix is singular");
+                }
+            }
+            int[] tmp = m[pivot]; m[pivot] = m[col]; m[col] = tmp;
+            tmp = result[pivot]; result[pivot] = result[col]; result[col] = tmp;
+
+            // Scale the pivot row so the pivot is 1
+            int scale = divide(1, m[col][col]);
+            for (int i = 0; i < size; i++) {
+                m[col][i] = multiply(m[col][i], scale);
+                result[col][i] = multiply(result[col][i], scale);
+            }
+
+            // Eliminate the column from every other row
+            for (int row = 0; row < size; row++) {
+                int factor = m[row][col];
+                if (row == col || factor == 0) {
+                    continue;
+                }
+                for (int i = 0; i < size; i++) {
+                    m[row][i] ^= multiply(factor, m[col][i]);
+                    result[row][i] ^= multiply(factor, result[col][i]);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static int multiply(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int divide(int a, int b) {
+        if (b == 0) {
+            throw new ArithmeticException("Division by zero in GF(256)");
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + (FIELD_SIZE - 1) - LOG[b]];
+    }
+}
@@ -0,0 +1,764 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Storage engine for servers holding large numbers of small files
+// Small files are appended to large segment files and found through an in-memory index, so reading one is a single
+// positional read and the file system only sees a handful of files. Deletes and overwrites leave dead space behind,
+// which a background thread reclaims by copying the live records out of mostly dead segments
+// Files over the small file limit are stored individually under large/<hash>/<hash>/, which keeps directories small
+//
+// Segment records: magic, type (put/delete), name length, data length, CRC32 of name and data, name, data
+// The index is checkpointed to index.dat, after which only the records written since the checkpoint need replaying
+public class SegmentStore implements FileStore {
+    private static final String SEGMENTS_DIR = "segments";
+    private static final String LARGE_DIR = "large";
+    private static final String INDEX_FILE = "index.dat";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    // Large files are written under a temporary name and renamed into place once they are on disk. Encoded names
+    // never contain '~', so a temporary file can't be mistaken for a stored one
+    private static final String TEMP_SUFFIX = "~tmp";
+
+    private static final int RECORD_MAGIC = 0x5345474D;
+    private static final long INDEX_MAGIC = 0x5345474D494E4458L;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4;
+
+    // Segments are compacted once this percentage of them is dead
+    private static final int COMPACTION_THRESHOLD = 50;
+
+    private final Path baseDir;
+    private final Path segmentsDir;
+    private final Path largeDir;
+    private final Durability durability;
+    private final int smallFileLimit;
+    private final long segmentSize;
+
+    // Small files - name to location in a segment
+    private final Map<String, Location> index = new HashMap<>();
+
+    // Large files - name to size
+    private final Map<String, Long> largeFiles = new HashMap<>();
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment activeSegment;
+    private boolean indexDirty = false;
+
+    // Reads take the read lock, closing and deleting segments takes the write lock
+    // Index and segment changes are made while synchronized on this object
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    private static class Location {
+        final int segment;
+        final long recordOffset;
+        final int recordSize;
+        final int dataLength;
+
+        Location(int segment, long recordOffset, int recordSize, int dataLength) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordSize = recordSize;
+            this.dataLength = dataLength;
+        }
+
+        long dataOffset(String filename) {
+            return recordOffset + HEADER_SIZE + filename.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+
+        Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    public SegmentStore(String filesDir, Durability durability, int smallFileLimit, long segmentSize, int compactIntervalMs) throws IOException {
+        this.baseDir = Paths.get(filesDir);
+        this.segmentsDir = baseDir.resolve(SEGMENTS_DIR);
+        this.largeDir = baseDir.resolve(LARGE_DIR);
+        this.durability = durability;
+        this.smallFileLimit = smallFileLimit;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(segmentsDir);
+        Files.createDirectories(largeDir);
+
+        recover();
+
+        if (compactIntervalMs > 0) {
+            Thread thread = new Thread(() -> runCompaction(compactIntervalMs), "segment-compaction");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Reads the settings from -Dserver.segment.smallFileBytes, -Dserver.segment.segmentMB and
+    // -Dserver.segment.compactIntervalMs
+    public static SegmentStore fromProperties(String filesDir, Durability durability) throws IOException {
+        int smallFileLimit = Shared.parsePropertyInteger("server.segment.smallFileBytes", "Small file limit must be a positive integer", 64 * 1024);
+        int segmentMB = Shared.parsePropertyInteger("server.segment.segmentMB", "Segment size must be a positive integer", 64);
+        int compactIntervalMs = Shared.parsePropertyInteger("server.segment.compactIntervalMs", "Compaction interval must be a positive integer", 30000);
+        return new SegmentStore(filesDir, durability, smallFileLimit, Math.max(1, segmentMB) * 1024L * 1024L, compactIntervalMs);
+    }
+
+    // Startup
+
+    private void recover() throws IOException {
+        // Find segments on disk
+        SortedMap<Integer, Path> segmentFiles = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(segmentsDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segmentFiles.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        // Load the checkpoint, which tells us how far each segment had been indexed
+        Map<Integer, Long> indexedUpTo = new HashMap<>();
+        int checkpointNextSegment = loadCheckpoint(indexedUpTo);
+
+        for (Map.Entry<Integer, Path> entry : segmentFiles.entrySet()) {
+            int id = entry.getKey();
+
+            // Segments older than the checkpoint that it doesn't know about were removed by compaction after the
+            // checkpoint was written, so they must not be replayed
+            if (id < checkpointNextSegment && !indexedUpTo.containsKey(id)) {
+                Files.deleteIfExists(entry.getValue());
+                continue;
+            }
+
+            FileChannel channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, entry.getValue(), channel, channel.size());
+            segments.put(id, segment);
+
+            long validEnd = replay(segment, indexedUpTo.getOrDefault(id, 0L));
+            if (validEnd < segment.size) {
+                // A torn write at the end of the segment, the upload was never acknowledged
+                channel.truncate(validEnd);
+                segment.size = validEnd;
+            }
+        }
+
+        // Segments referenced by the checkpoint that no longer exist are dropped from the index
+        index.values().removeIf(location -> !segments.containsKey(location.segment));
+
+        // Work out how much of each segment is live
+        for (Location location : index.values()) {
+            segments.get(location.segment).liveBytes += location.recordSize;
+        }
+
+        // Large files are listed from disk. A large file wins over a small record of the same name: writing a large
+        // file only removes the small record once the large file is durable, and writing a small file only deletes the
+        // large file once its record is durable. A large file that is still on disk is therefore either the newer
+        // version, or the older one of a small write that was never acknowledged
+        // Temporary files are large files that were still being written, which never replaced anything
+        if (Files.isDirectory(largeDir)) {
+            List<Path> paths;
+            try (Stream<Path> walk = Files.walk(largeDir)) {
+                paths = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+
+            for (Path path : paths) {
+                if (path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+
+                String filename = decodeName(path.getFileName().toString());
+                largeFiles.put(filename, path.toFile().length());
+                Location location = index.remove(filename);
+                if (location != null) {
+                    segments.get(location.segment).liveBytes -= location.recordSize;
+                }
+            }
+        }
+
+        int nextId = segments.isEmpty() ? Math.max(checkpointNextSegment, 1) : Math.max(segments.lastKey(), checkpointNextSegment);
+        if (segments.isEmpty() || segments.lastEntry().getValue().size >= segmentSize) {
+            activeSegment = createSegment(segments.isEmpty() ? nextId : nextId + 1);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+
+        System.out.println(String.format("Segment store loaded %,d small files in %,d segments and %,d large files",
+                index.size(), segments.size(), largeFiles.size()));
+    }
+
+    // Loads the checkpointed index, filling in how far each segment had been indexed
+    // Returns the next segment ID at the time of the checkpoint (0 if there is no checkpoint)
+    private int loadCheckpoint(Map<Integer, Long> indexedUpTo) {
+        Path indexPath = baseDir.resolve(INDEX_FILE);
+        if (!Files.exists(indexPath)) {
+            return 0;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readLong() != INDEX_MAGIC) {
+                throw new IOException("Bad magic number");
+            }
+
+            int nextSegment = in.readInt();
+            int numSegments = in.readInt();
+            for (int i = 0; i < numSegments; i++) {
+                indexedUpTo.put(in.readInt(), in.readLong());
+            }
+
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String filename = in.readUTF();
+                index.put(filename, new Location(in.readInt(), in.readLong(), in.readInt(), in.readInt()));
+            }
+
+            return nextSegment;
+        } catch (IOException e) {
+            // Fall back to replaying every segment from the start
+            System.out.println("Could not load segment index, rebuilding from segments. " + e.getMessage());
+            indexedUpTo.clear();
+            index.clear();
+            return 0;
+        }
+    }
+
+    // Applies the records in a segment from the given position to the index
+    // Returns the position after the last valid record
+    private long replay(Segment segment, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+
+            int magic = header.getInt();
+            byte type = header.get();
+            int nameLength = header.getInt();
+            int dataLength = header.getInt();
+            int crc = header.getInt();
+            if (magic != RECORD_MAGIC || nameLength < 0 || dataLength < 0 || position + HEADER_SIZE + nameLength + dataLength > segment.size) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(nameLength + dataLength);
+            readFully(segment.channel, body, position + HEADER_SIZE);
+            CRC32 checksum = new CRC32();
+            checksum.update(body.array());
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+
+            String filename = new String(body.array(), 0, nameLength, StandardCharsets.UTF_8);
+            int recordSize = HEADER_SIZE + nameLength + dataLength;
+            if (type == TYPE_PUT) {
+                index.put(filename, new Location(segment.id, position, recordSize, dataLength));
+            } else {
+                index.remove(filename);
+            }
+
+            position += recordSize;
+        }
+
+        return position;
+    }
+
+    // FileStore
+
+    @Override
+    public synchronized boolean exists(String filename) {
+        return index.containsKey(filename) || largeFiles.containsKey(filename);
+    }
+
+    @Override
+    public synchronized long size(String filename) {
+        Location location = index.get(filename);
+        if (location != null) {
+            return location.dataLength;
+        }
+        return largeFiles.getOrDefault(filename, -1L);
+    }
+
+    @Override
+    public byte[] read(String filename) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Location location;
+            Segment segment;
+            synchronized (this) {
+                if (largeFiles.containsKey(filename)) {
+                    location = null;
+                    segment = null;
+                } else {
+                    location = index.get(filename);
+                    if (location == null) {
+                        return null;
+                    }
+                    segment = segments.get(location.segment);
+                }
+            }
+
+            if (location == null) {
+                return Files.readAllBytes(largePath(filename));
+            }
+
+            // Single positional read of the data
+            ByteBuffer data = ByteBuffer.allocate(location.dataLength);
+            readFully(segment.channel, data, location.dataOffset(filename));
+            return data.array();
+        } catch (NoSuchFileException e) {
+            // Large file deleted while we were reading it
+            return null;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] read(String filename, long offset, int length) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Location location;
+            Segment segment;
+            synchronized (this) {
+                if (largeFiles.containsKey(filename)) {
+                    location = null;
+                    segment = null;
+                } else {
+                    location = index.get(filename);
+                    if (location == null) {
+                        return null;
+                    }
+                    segment = segments.get(location.segment);
+                }
+            }
+
+            if (location == null) {
+                try (FileChannel channel = FileChannel.open(largePath(filename), StandardOpenOption.READ)) {
+                    ByteBuffer data = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+                    readFully(channel, data, offset);
+                    return data.array();
+                }
+            }
+
+            ByteBuffer data = ByteBuffer.allocate((int) Math.max(0, Math.min(length, location.dataLength - offset)));
+            readFully(segment.channel, data, location.dataOffset(filename) + offset);
+            return data.array();
+        } catch (NoSuchFileException e) {
+            return null;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long write(String filename, ByteBuffer data) throws IOException {
+        if (data.remaining() > smallFileLimit) {
+            return writeLarge(filename, data);
+        }
+
+        // The read lock stops compaction closing the segment before it has been synced
+        segmentLock.readLock().lock();
+        try {
+            Segment segment;
+            long oldSize;
+            boolean replacesLarge;
+            synchronized (this) {
+                oldSize = size(filename);
+                replacesLarge = largeFiles.remove(filename) != null;
+                segment = append(TYPE_PUT, filename, data);
+            }
+
+            // Sync outside the lock so that concurrent uploads can share a group commit
+            // A large file of the same name is only deleted once the record is on disk, as until then it is the only
+            // copy. Recovery prefers large files over small records (see recover()), so it has to go before the write is
+            // acknowledged. It isn't deleted if another large file has been written in its place meanwhile
+            if (!replacesLarge) {
+                durability.sync(segment.channel, segment.path, false);
+                return oldSize;
+            }
+
+            durability.syncRequired(segment.channel, segment.path, false);
+            synchronized (this) {
+                if (!largeFiles.containsKey(filename)) {
+                    Files.deleteIfExists(largePath(filename));
+                }
+            }
+            durability.syncEntry(largePath(filename));
+            return oldSize;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    // The file is written under a temporary name, synced and then renamed over the old one, so that a crash part way
+    // through leaves either the old contents or the new, never a mixture
+    private long writeLarge(String filename, ByteBuffer data) throws IOException {
+        Path path = largePath(filename);
+        Files.createDirectories(path.getParent());
+
+        long length = data.remaining();
+        Path tempPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                durability.syncRequired(channel, tempPath, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+
+        segmentLock.readLock().lock();
+        try {
+            Segment segment = null;
+            long oldSize;
+            synchronized (this) {
+                // Renamed while holding the lock, so that a small write of the same name can't delete the new file
+                // thinking it is the one it replaced
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                oldSize = size(filename);
+                largeFiles.put(filename, length);
+
+                // Remove a small record of the same name
+                if (index.containsKey(filename)) {
+                    segment = append(TYPE_DELETE, filename, ByteBuffer.allocate(0));
+                }
+            }
+
+            durability.syncEntry(path);
+            if (segment != null) {
+                durability.sync(segment.channel, segment.path, false);
+            }
+            return oldSize;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long delete(String filename) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Segment segment = null;
+            long oldSize;
+            boolean removedLarge;
+            synchronized (this) {
+                oldSize = size(filename);
+                if (oldSize == -1) {
+                    return -1;
+                }
+
+                removedLarge = largeFiles.remove(filename) != null;
+                if (removedLarge) {
+                    Files.deleteIfExists(largePath(filename));
+                }
+                if (index.containsKey(filename)) {
+                    segment = append(TYPE_DELETE, filename, ByteBuffer.allocate(0));
+                }
+            }
+
+            if (segment != null) {
+                durability.sync(segment.channel, segment.path, false);
+            }
+            if (removedLarge) {
+                durability.syncEntry(largePath(filename));
+            }
+            return oldSize;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized List<String> list() {
+        List<String> listings = new ArrayList<>(index.size() + largeFiles.size());
+        listings.addAll(index.keySet());
+        listings.addAll(largeFiles.keySet());
+        return listings;
+    }
+
+    @Override
+    public synchronized long bytesUsed() {
+        long bytes = 0;
+        for (Location location : index.values()) {
+            bytes += location.dataLength;
+        }
+        for (long size : largeFiles.values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    // Segments
+
+    // Appends a record to the active segment and updates the index
+    // Returns the segment written to, which needs syncing once the lock is released
+    private Segment append(byte type, String filename, ByteBuffer data) throws IOException {
+        if (activeSegment.size >= segmentSize) {
+            activeSegment = createSegment(activeSegment.id + 1);
+        }
+
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        CRC32 checksum = new CRC32();
+        int dataLength = data.remaining();
+        checksum.update(name);
+        checksum.update(data.duplicate());
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + name.length + dataLength);
+        record.putInt(RECORD_MAGIC).put(type).putInt(name.length).putInt(dataLength).putInt((int) checksum.getValue());
+        record.put(name).put(data);
+        record.flip();
+
+        Segment segment = activeSegment;
+        long position = segment.size;
+        while (record.hasRemaining()) {
+            position += segment.channel.write(record, position);
+        }
+
+        long recordOffset = segment.size;
+        int recordSize = (int) (position - recordOffset);
+        segment.size = position;
+
+        // The old record for this name is now dead space
+        Location old = index.remove(filename);
+        if (old != null) {
+            segments.get(old.segment).liveBytes -= old.recordSize;
+        }
+        if (type == TYPE_PUT) {
+            index.put(filename, new Location(segment.id, recordOffset, recordSize, dataLength));
+            segment.liveBytes += recordSize;
+        }
+
+        indexDirty = true;
+        return segment;
+    }
+
+    // The new segment's directory entry is synced straight away, so records appended to it later only need the segment
+    // itself syncing
+    private Segment createSegment(int id) throws IOException {
+        Path path = segmentsDir.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        durability.sync(channel, path, true);
+        Segment segment = new Segment(id, path, channel, channel.size());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    // Compaction
+
+    private void runCompaction(int intervalMs) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+                compact();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("Segment compaction failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Copies the live records out of sealed segments that are mostly dead space, then deletes them
+    void compact() throws IOException {
+        List<Segment> toCompact = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment && segment.size > 0 && 100 * (segment.size - segment.liveBytes) / segment.size >= COMPACTION_THRESHOLD) {
+                    toCompact.add(segment);
+                }
+            }
+        }
+
+        for (Segment segment : toCompact) {
+            compactSegment(segment);
+        }
+
+        synchronized (this) {
+            if (!toCompact.isEmpty() || indexDirty) {
+                saveCheckpoint();
+            }
+        }
+
+        // Only delete segments once the checkpoint no longer refers to them. Taking the write lock also waits for writers
+        // still syncing records they appended to these segments before they were sealed
+        if (!toCompact.isEmpty()) {
+            segmentLock.writeLock().lock();
+            try {
+                for (Segment segment : toCompact) {
+                    segment.channel.close();
+                    Files.deleteIfExists(segment.path);
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            System.out.println(String.format("Compacted %,d segments", toCompact.size()));
+        }
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+        // Find the live records in the segment
+        List<String> liveFiles = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (entry.getValue().segment == segment.id) {
+                    liveFiles.add(entry.getKey());
+                }
+            }
+        }
+
+        // Copy each one to the active segment, unless it has been replaced since
+        // The active segment may fill up and be replaced along the way, so every segment written to is remembered
+        Set<Segment> written = new LinkedHashSet<>();
+        for (String filename : liveFiles) {
+            synchronized (this) {
+                Location location = index.get(filename);
+                if (location == null || location.segment != segment.id) {
+                    continue;
+                }
+
+                ByteBuffer data = ByteBuffer.allocate(location.dataLength);
+                readFully(segment.channel, data, location.dataOffset(filename));
+                data.flip();
+                written.add(append(TYPE_PUT, filename, data));
+            }
+        }
+
+        // Delete records in the segment only matter while an older segment might still hold the file. Rather than
+        // tracking that, every name deleted in the segment gets a fresh delete record if older segments remain
+        synchronized (this) {
+            if (segments.firstKey() < segment.id) {
+                for (String filename : deletedNames(segment)) {
+                    if (!index.containsKey(filename) && !largeFiles.containsKey(filename)) {
+                        written.add(append(TYPE_DELETE, filename, ByteBuffer.allocate(0)));
+                    }
+                }
+            }
+
+            segments.remove(segment.id);
+        }
+
+        // The copies have to be on disk before the segment is deleted, whatever the durability policy, as the files
+        // in it were already durable. New segments' directory entries are synced too
+        for (Segment copy : written) {
+            durability.syncRequired(copy.channel, copy.path, true);
+        }
+    }
+
+    // Returns the names of files removed by delete records in the segment
+    private List<String> deletedNames(Segment segment) throws IOException {
+        List<String> names = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while (position + HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            header.getInt();
+            byte type = header.get();
+            int nameLength = header.getInt();
+            int dataLength = header.getInt();
+
+            if (type == TYPE_DELETE) {
+                ByteBuffer name = ByteBuffer.allocate(nameLength);
+                readFully(segment.channel, name, position + HEADER_SIZE);
+                names.add(new String(name.array(), StandardCharsets.UTF_8));
+            }
+
+            position += HEADER_SIZE + nameLength + dataLength;
+        }
+        return names;
+    }
+
+    // Writes the index and the indexed size of each segment, replacing the old checkpoint atomically
+    private void saveCheckpoint() throws IOException {
+        Path tmpPath = baseDir.resolve(INDEX_FILE + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(tmpPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+            out.writeLong(INDEX_MAGIC);
+            out.writeInt(activeSegment.id + 1);
+
+            out.writeInt(segments.size());
+            for (Segment segment : segments.values()) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.size);
+            }
+
+            out.writeInt(index.size());
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                Location location = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(location.segment);
+                out.writeLong(location.recordOffset);
+                out.writeInt(location.recordSize);
+                out.writeInt(location.dataLength);
+            }
+
+            out.flush();
+            fileStream.getFD().sync();
+        }
+
+        Files.move(tmpPath, baseDir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexDirty = false;
+    }
+
+    // Helpers
+
+    // Large files are spread over 256 * 256 directories by a hash of the name
+    private Path largePath(String filename) {
+        int hash = filename.hashCode();
+        return largeDir.resolve(String.format("%02x", (hash >>> 8) & 0xFF))
+                .resolve(String.format("%02x", hash & 0xFF))
+                .resolve(encodeName(filename));
+    }
+
+    private static String encodeName(String filename) {
+        try {
+            return URLEncoder.encode(filename, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decodeName(String encoded) {
+        try {
+            return URLDecoder.decode(encoded, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+}
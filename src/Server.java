@@ -1,24 +1,84 @@
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Admission permits and slots are held by try-with-resources blocks that never refer to them
+@SuppressWarnings("try")
 public class Server extends UnicastRemoteObject implements ServerInterface {
     private static final String SERVER_RMI_NAME = "FileServer";
+    static final String FAULT_RMI_NAME = "FaultControl";
     private static final String DEFAULT_RMI_HOSTNAME = "localhost";
     private static final int DEFAULT_RMI_PORT = 1099;
     private static final String BASE_DIR = "server_files_";
 
+    // Filter sizing. The filter is rebuilt at double the size once there are more files than bits / BITS_PER_FILE
+    private static final int DEFAULT_FILTER_BITS = 1 << 20;
+    private static final int FILTER_HASHES = 7;
+    private static final int BITS_PER_FILE = 10;
+
     private String FILES_DIR;
 
+    // Filter of the files on this server, handed to front ends so that they can skip servers that don't have a file
+    private volatile CountingBloomFilter filter;
+
+    // Usage reported to front ends through stats()
+    private final AtomicLong bytesUsed = new AtomicLong();
+    private final AtomicInteger activeOperations = new AtomicInteger();
+
+    // Limits concurrent transfers and the bytes they hold, turning requests away when overloaded
+    private final AdmissionControl admission = AdmissionControl.fromProperties("File server", "server.admission");
+
+    // Uploads and downloads are run by a bounded pool of workers, which turns calls away once it and its queue are full
+    // Copies to other servers are left on the caller's thread, so two servers copying to each other can't use up
+    // each other's workers
+    private final WorkerPool workers = WorkerPool.fromProperties("File server", "server");
+
+    // How uploads are flushed to disk before they are acknowledged
+    private final Durability durability = Durability.fromProperties();
+
+    // Where files are kept on disk
+    private FileStore store;
+
+    // Frequently downloaded files are kept in memory. Null if the cache is disabled
+    private final ReadCache cache = ReadCache.fromProperties();
+
+    // Faults injected into storage for failover testing. Null unless enabled with -Dserver.faults=true
+    private final FaultInjector faults = FaultInjector.fromProperties();
+
+    // Files added and deleted, pushed to front ends so that they can answer listings without asking us
+    private final ChangeLog changes = ChangeLog.fromProperties();
+
+    // Changing a file and recording the change in the feed (and filter) happen under the file's lock, so that the feed
+    // lists a file's changes in the order the store made them. Otherwise a delete racing an upload of the same file
+    // could be recorded before it, leaving front ends thinking a deleted file exists (or the other way round)
+    // Files are spread over a fixed set of locks so that writes to different files, and the group commit that
+    // batches their syncs, still run side by side
+    private static final int NUM_FILE_LOCKS = 64;
+    private final Object[] fileLocks = new Object[NUM_FILE_LOCKS];
+
+    // Version of every file changed since the server started, so that the rebalancer can tell whether a file changed
+    // while it was being copied. Each write takes a new version under the file's lock, and deleting a file forgets it
+    // Files unchanged since the server started share startVersion, which is different every time the server starts
+    private final long startVersion = System.currentTimeMillis() << 20;
+    private final AtomicLong nextVersion = new AtomicLong(startVersion);
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+
+    // Copies being received from other servers, by copy ID. Pieces are staged in a temporary file until the copy is
+    // committed. Copies left idle for longer than COPY_TIMEOUT_MS are abandoned
+    private static final int COPY_TIMEOUT_MS = 60000;
+    private final Map<String, UploadSession> incomingCopies = new ConcurrentHashMap<>();
+
     // Main entry functions
     public static void main(String[] args) {
         // Ensure argument length
@@ -53,6 +113,9 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
             // Bind the remote object's stub in the registry
             Registry register = LocateRegistry.getRegistry(hostname, port);
             register.rebind(SERVER_RMI_NAME + serverID, obj);
+            if (obj.getFaults() != null) {
+                register.rebind(FAULT_RMI_NAME + serverID, obj.getFaults());
+            }
 
             System.out.println("Server ready");
         } catch (Exception e) {
@@ -63,101 +126,478 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 
     // Object functions
     private Server(int id) throws RemoteException {
-        this.FILES_DIR = BASE_DIR + id + "/";
+        this(BASE_DIR + id + "/");
+    }
+
+    // Creates a server keeping its files in the given directory (which must end with a separator)
+    Server(String filesDir) throws RemoteException {
+        // Callers get stubs that apply their per-call deadlines, so a hung server can't block them indefinitely
+        super(0, new DeadlineSocketFactory(), null);
+
+        this.FILES_DIR = filesDir;
         Shared.ensureDirExists(FILES_DIR);
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new Object();
+        }
+
+        log("Using durability policy " + durability.getPolicy());
+        if (cache == null) {
+            log("Read cache disabled");
+        }
+
+        // Pick the storage engine. Segments suit servers holding huge numbers of small files
+        String storage = System.getProperty("server.storage", "files");
+        try {
+            if (storage.equalsIgnoreCase("segments")) {
+                log("Using segment storage");
+                store = SegmentStore.fromProperties(FILES_DIR, durability);
+            } else {
+                store = new DirectoryStore(FILES_DIR, durability);
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Could not open storage", e);
+        }
+
+        if (faults != null) {
+            log("Fault injection enabled");
+            store = faults.wrap(store);
+        }
+
+        int filterBits = Shared.parsePropertyInteger("server.filter.bits", "Filter size must be a positive integer", DEFAULT_FILTER_BITS);
+        rebuildFilter(Math.max(filterBits, 64));
+
+        // Find how much space the existing files take up
+        try {
+            bytesUsed.set(store.bytesUsed());
+        } catch (IOException e) {
+            log("Could not calculate disk usage: " + e.getMessage());
+        }
+    }
+
+    // Creates a new filter from the files on disk
+    private synchronized void rebuildFilter(int numBits) {
+        CountingBloomFilter newFilter = new CountingBloomFilter(numBits, FILTER_HASHES);
+        for (String listing : list()) {
+            newFilter.add(listing);
+        }
+
+        filter = newFilter;
+        log(String.format("Built filter of %,d files using %,d bits", newFilter.size(), numBits));
+    }
+
+    private synchronized void addToFilter(String filename) {
+        filter.add(filename);
+
+        // Keep the false positive rate down as the number of files grows
+        if ((long) filter.size() * BITS_PER_FILE > filter.capacity() && filter.capacity() <= Integer.MAX_VALUE / 2) {
+            rebuildFilter(filter.capacity() * 2);
+        }
     }
 
     @Override
     public int delete(String filename) {
+        return delete(filename, -1);
+    }
+
+    @Override
+    public int delete(String filename, long version) {
         log("Received request to delete: " + filename);
 
         // Server returns 1 or -1 based on whether or not the file exists
-        File file = new File(FILES_DIR + filename);
-        if (!file.exists()) {
-            log("File doesn't exist: " + file.toString());
-            return -1;
-        }
+        try {
+            synchronized (lockFor(filename)) {
+                if (version != -1 && currentVersion(filename) != version) {
+                    log("File has changed since version " + version + ", not deleting: " + filename);
+                    return -1;
+                }
+
+                long size = store.delete(filename);
+                if (size == -1) {
+                    log("File doesn't exist: " + filename);
+                    return -1;
+                }
 
-        // Delete file
-        if (file.delete()) {
+                versions.remove(filename);
+                filter.remove(filename);
+                changes.deleted(filename);
+                bytesUsed.addAndGet(-size);
+                if (cache != null) {
+                    cache.invalidate(filename);
+                }
+            }
             log("File deleted");
             return 1;
-        } else {
-            log("Error deleting file");
+        } catch (IOException e) {
+            log("Error deleting file. " + e.getMessage());
             return 0;
         }
     }
 
     @Override
-    public byte[] download(String filename) {
+    public Payload download(String filename) throws ServerBusyException {
+        return workers.run(() -> readFile(filename));
+    }
+
+    private Payload readFile(String filename) throws ServerBusyException {
         log("Received request to download: " + filename);
 
-        // Check if file exists
-        File file = new File(FILES_DIR + filename);
-        if (!file.exists()) {
+        // Check if file exists, the size is needed to admit the request
+        long size = store.size(filename);
+        if (size == -1) {
             log("The file \"" + filename + "\" does not exist on the server");
             return null;
         }
 
         // Read file from disk and return
-        log("Reading file from disk");
-        try {
-            byte[] data = Files.readAllBytes(file.toPath());
+        activeOperations.incrementAndGet();
+        try (AdmissionControl.Permit ignored = admission.admit(size)) {
+            // Serve hot files from memory
+            long cacheVersion = 0;
+            if (cache != null) {
+                Payload cached = cache.get(filename);
+                if (cached != null) {
+                    log("Data read from cache and returned");
+                    return cached.releaseAfterSend();
+                }
+                cacheVersion = cache.getVersion();
+            }
+
+            byte[] data = store.read(filename);
+            if (data == null) {
+                log("The file \"" + filename + "\" does not exist on the server");
+                return null;
+            }
+
+            if (cache != null) {
+                cache.put(filename, data, cacheVersion);
+            }
+
+            log("Data read from disk and returned");
+            return Payload.wrap(data);
+        } catch (ServerBusyException e) {
+            // Let the front end know so that it can try another server
+            throw e;
+        } catch (IOException e) {
+            log("Could not read '" + filename + "' from disk. " + e.getMessage());
+            return null;
+        } finally {
+            activeOperations.decrementAndGet();
+        }
+    }
+
+    @Override
+    public Payload downloadRange(String filename, long offset, int length) throws ServerBusyException {
+        return workers.run(() -> readFileRange(filename, offset, length, -1));
+    }
+
+    @Override
+    public Payload downloadRange(String filename, long offset, int length, long version) throws ServerBusyException {
+        return workers.run(() -> readFileRange(filename, offset, length, version));
+    }
+
+    // Any version of the file is read if version is -1
+    private Payload readFileRange(String filename, long offset, int length, long version) throws ServerBusyException {
+        log("Received request to download " + length + " bytes from " + offset + " of: " + filename);
+
+        long size = store.size(filename);
+        if (size == -1) {
+            log("The file \"" + filename + "\" does not exist on the server");
+            return null;
+        }
+
+        // Ranges are read straight from disk. The cache only holds whole files
+        activeOperations.incrementAndGet();
+        try (AdmissionControl.Permit ignored = admission.admit(Math.max(0, Math.min(length, size - offset)))) {
+            // Checked after reading too, as a write during the read could leave it with a mixture of old and new data
+            if (version != -1 && version(filename) != version) {
+                log("Not reading " + filename + ", it has changed since version " + version);
+                return null;
+            }
+
+            byte[] data = store.read(filename, offset, length);
+            if (data == null) {
+                log("The file \"" + filename + "\" does not exist on the server");
+                return null;
+            }
+            if (version != -1 && version(filename) != version) {
+                log("Not returning " + filename + ", it changed while it was read");
+                return null;
+            }
+
             log("Data read from disk and returned");
-            return data;
+            return Payload.wrap(data);
+        } catch (ServerBusyException e) {
+            throw e;
         } catch (IOException e) {
-            log("Could not read '" + file.toString() + "' from disk. " + e.getMessage());
+            log("Could not read '" + filename + "' from disk. " + e.getMessage());
             return null;
+        } finally {
+            activeOperations.decrementAndGet();
         }
     }
 
     @Override
     public boolean fileExists(String filename) {
-        File file = new File(FILES_DIR + filename);
-        return file.exists();
+        return store.exists(filename);
+    }
+
+    @Override
+    public FilterUpdate getFilter(long knownVersion) {
+        return filter.updateSince(knownVersion);
+    }
+
+    @Override
+    public ChangeBatch subscribe(ChangeListener listener, long knownEpoch, long afterSeq) throws RemoteException {
+        return changes.subscribe(listener, knownEpoch, afterSeq, this::list);
+    }
+
+    @Override
+    public void unsubscribe(ChangeListener listener) {
+        changes.unsubscribe(listener);
+    }
+
+    // Returns the server's fault controls, or null if fault injection is not enabled
+    FaultInjector getFaults() {
+        return faults;
+    }
+
+    // Stops pushing changes to front ends, for when the server is shut down without the JVM exiting
+    void stopChangeFeed() {
+        changes.close();
+    }
+
+    @Override
+    public ServerStats stats() {
+        File dir = new File(FILES_DIR);
+        return new ServerStats(bytesUsed.get(), dir.getUsableSpace(), dir.getTotalSpace(), filter.size(), activeOperations.get(), durability, cache);
     }
 
     @Override
     public List<String> list() {
         log("Received request to obtain listings");
-        List<String> listings = new ArrayList<>();
 
-        // Get listings by traversing through source directory
         try {
-            Files.walk(Paths.get(FILES_DIR))
-                    .filter(Files::isRegularFile)
-                    .forEach(path -> {
-                        String listing = path.toString().substring(FILES_DIR.length());
-                        listings.add(listing);
-                    });
+            List<String> listings = store.list();
+            log("Returned listings");
+            return listings;
         } catch (IOException e) {
             log("Could not find file listings: " + e.getMessage());
             return new ArrayList<>();
         }
-
-        log("Returned listings");
-        return listings;
     }
 
     @Override
-    public boolean upload(String filename, byte[] data) {
-        log("Received request to upload a file to: " + filename);
+    public boolean upload(String filename, Payload payload) throws ServerBusyException {
+        try {
+            payload.checkReceived();
+            return workers.run(() -> writeFile(filename, payload));
+        } finally {
+            payload.release();
+        }
+    }
 
-        // Convert filename to full path and make directories
-        File outFile = new File(FILES_DIR + filename);
-        //noinspection ResultOfMethodCallIgnored
-        outFile.getParentFile().mkdirs();
+    private boolean writeFile(String filename, Payload payload) throws ServerBusyException {
+        log("Received request to upload a file to: " + filename);
 
-        // Save data
-        try (FileOutputStream stream = new FileOutputStream(outFile)) {
-            stream.write(data);
+        // Save data. The store writes straight from the payload's buffer, so the file is never copied onto the heap
+        activeOperations.incrementAndGet();
+        try (AdmissionControl.Permit ignored = admission.admit(payload.size())) {
+            synchronized (lockFor(filename)) {
+                store(filename, payload);
+            }
             log("File saved to disk");
             return true;
+        } catch (ServerBusyException e) {
+            throw e;
         } catch (IOException e) {
             log("Error writing file to disk");
             log(e.getMessage());
             return false;
+        } finally {
+            activeOperations.decrementAndGet();
+        }
+    }
+
+    @Override
+    public long size(String filename) {
+        return store.size(filename);
+    }
+
+    // Writes a file and records the change. The caller holds the file's lock. Returns the file's new version
+    private long store(String filename, Payload payload) throws IOException {
+        long oldSize = store.write(filename, payload.buffer());
+        bytesUsed.addAndGet(payload.size() - Math.max(oldSize, 0));
+        if (cache != null) {
+            cache.invalidate(filename);
         }
+        if (oldSize == -1) {
+            addToFilter(filename);
+            changes.added(filename);
+        }
+
+        long version = nextVersion.incrementAndGet();
+        versions.put(filename, version);
+        return version;
+    }
+
+    @Override
+    public long version(String filename) {
+        synchronized (lockFor(filename)) {
+            return currentVersion(filename);
+        }
+    }
+
+    // The caller holds the file's lock
+    private long currentVersion(String filename) {
+        return store.exists(filename) ? versions.getOrDefault(filename, startVersion) : -1;
+    }
+
+    @Override
+    public String startCopy(String filename, long size) {
+        expireCopies();
+
+        if (store.exists(filename)) {
+            log("Not copying " + filename + " here, the server already has it");
+            return null;
+        }
+        if (size < 0 || size > Payload.getMaxBytes()) {
+            log(String.format("Not copying %s here, %,d bytes is too large", filename, size));
+            return null;
+        }
+
+        try {
+            String copyID = UUID.randomUUID().toString();
+            incomingCopies.put(copyID, new UploadSession(filename, size, false));
+            log(String.format("Started receiving copy %s of '%s' (%,d bytes)", copyID, filename, size));
+            return copyID;
+        } catch (IOException e) {
+            log("Could not create temporary copy file. " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public boolean copyRangeTo(String filename, long version, long offset, int length, ServerInterface target, String copyID) throws ServerBusyException {
+        log("Received request to copy " + length + " bytes from " + offset + " of " + filename + " to another server");
+
+        activeOperations.incrementAndGet();
+        try (AdmissionControl.Permit ignored = admission.admit(length)) {
+            // Checked after reading too, as a write during the read could leave it with a mixture of old and new data
+            if (version(filename) != version) {
+                log("Not copying " + filename + ", it has changed since version " + version);
+                return false;
+            }
+
+            byte[] data = store.read(filename, offset, length);
+            if (data == null || version(filename) != version) {
+                log("Not copying " + filename + ", it has changed since version " + version);
+                return false;
+            }
+
+            // Errors talking to the target are not our fault, so they are reported as a failed copy rather than
+            // thrown back to the front end. The target being busy is, so that the rebalancer backs off
+            try {
+                return target.receiveCopy(copyID, offset, Payload.wrap(data));
+            } catch (ServerBusyException e) {
+                throw e;
+            } catch (RemoteException e) {
+                log("Could not reach target server. " + e.getMessage());
+                return false;
+            }
+        } catch (ServerBusyException e) {
+            throw e;
+        } catch (IOException e) {
+            log("Could not read '" + filename + "' from disk. " + e.getMessage());
+            return false;
+        } finally {
+            activeOperations.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean receiveCopy(String copyID, long offset, Payload data) throws ServerBusyException {
+        try {
+            data.checkReceived();
+            UploadSession session = incomingCopies.get(copyID);
+            if (session == null) {
+                log("Received a piece of unknown copy " + copyID);
+                return false;
+            }
+
+            session.write(offset, data);
+            return true;
+        } catch (IOException e) {
+            log("Could not store piece of copy " + copyID + ". " + e.getMessage());
+            abortCopy(copyID);
+            return false;
+        } finally {
+            data.release();
+        }
+    }
+
+    @Override
+    public long commitCopy(String copyID) throws ServerBusyException {
+        UploadSession session = incomingCopies.remove(copyID);
+        if (session == null) {
+            log("Asked to commit unknown copy " + copyID);
+            return -1;
+        }
+
+        String filename = session.getFilename();
+        activeOperations.incrementAndGet();
+        try (AdmissionControl.Permit ignored = admission.admit(session.getSize())) {
+            if (!session.isComplete()) {
+                log(String.format("Copy of %s is incomplete, %,d/%,d bytes received", filename, session.getBytesReceived(), session.getSize()));
+                return -1;
+            }
+
+            Payload data = session.readAll();
+            try {
+                // A client may have stored the file here while it was being copied, which is newer than the copy
+                synchronized (lockFor(filename)) {
+                    if (store.exists(filename)) {
+                        log("Discarding copy of " + filename + ", the file has been stored here since the copy started");
+                        return -1;
+                    }
+
+                    long version = store(filename, data);
+                    log("Copy of " + filename + " saved to disk");
+                    return version;
+                }
+            } finally {
+                data.release();
+            }
+        } catch (ServerBusyException e) {
+            throw e;
+        } catch (IOException e) {
+            log("Error writing copy of " + filename + " to disk. " + e.getMessage());
+            return -1;
+        } finally {
+            activeOperations.decrementAndGet();
+            session.close();
+        }
+    }
+
+    @Override
+    public void abortCopy(String copyID) {
+        UploadSession session = incomingCopies.remove(copyID);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    // Abandons copies that the sending server has stopped sending
+    private void expireCopies() {
+        for (Map.Entry<String, UploadSession> entry : incomingCopies.entrySet()) {
+            if (entry.getValue().getIdleMs() > COPY_TIMEOUT_MS) {
+                log("Abandoning idle copy " + entry.getKey() + " of '" + entry.getValue().getFilename() + "'");
+                abortCopy(entry.getKey());
+            }
+        }
+    }
+
+    private Object lockFor(String filename) {
+        return fileLocks[Math.floorMod(filename.hashCode(), NUM_FILE_LOCKS)];
     }
 
     private void log(String msg) {
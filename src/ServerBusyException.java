@@ -0,0 +1,11 @@
+import java.rmi.RemoteException;
+
+// Thrown when a front end or server is overloaded and turns a request away
+// The request was not processed, so it is safe to retry later or send it somewhere else
+public class ServerBusyException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerBusyException(String message) {
+        super(message);
+    }
+}
@@ -9,8 +9,20 @@ public interface ServerInterface extends Remote {
     // 1 - File was deleted
     int delete(String filename) throws RemoteException;
 
+    // Deletes the file only if it is still at the given version (see version()), otherwise returns -1
+    int delete(String filename, long version) throws RemoteException;
+
+    // Response is null if file couldn't be found/another error occurred
+    // Payloads received by a front end are pooled and must be released once used (see Payload)
+    Payload download(String filename) throws RemoteException;
+
+    // Returns up to length bytes of the file starting at offset, so that large files can be downloaded in pieces
     // Response is null if file couldn't be found/another error occurred
-    byte[] download(String filename) throws RemoteException;
+    Payload downloadRange(String filename, long offset, int length) throws RemoteException;
+
+    // Like downloadRange, but returns null unless the file is still at the given version (see version()), so that a
+    // file downloaded in pieces doesn't mix the data of two uploads
+    Payload downloadRange(String filename, long offset, int length, long version) throws RemoteException;
 
     // Returns true if the file exists on the server
     boolean fileExists(String filename) throws RemoteException;
@@ -19,6 +31,47 @@ public interface ServerInterface extends Remote {
     // List is blank if no listings exist/any other errors occurred
     List<String> list() throws RemoteException;
 
+    // Returns a Bloom filter of the filenames on this server, or the changes to it since knownVersion if the server
+    // still has them. Returns null if the filter has not changed since knownVersion, so front ends can cheaply poll
+    // for changes
+    FilterUpdate getFilter(long knownVersion) throws RemoteException;
+
+    // Subscribes to the files added to and deleted from this server, which are pushed to the listener from then on
+    // Returns the changes after afterSeq if knownEpoch and afterSeq came from an earlier subscription and the server
+    // still has them, otherwise the full listing. The returned batch is the starting point for the pushed changes
+    ChangeBatch subscribe(ChangeListener listener, long knownEpoch, long afterSeq) throws RemoteException;
+
+    // Stops pushing changes to the listener
+    void unsubscribe(ChangeListener listener) throws RemoteException;
+
+    // Returns the server's disk usage, file count and load
+    ServerStats stats() throws RemoteException;
+
     // Returns true or false if upload was succesful
-    boolean upload(String filename, byte[] data) throws RemoteException;
+    boolean upload(String filename, Payload data) throws RemoteException;
+
+    // Returns the size of a file in bytes, or -1 if it does not exist
+    long size(String filename) throws RemoteException;
+
+    // Returns a number that changes every time the file is written, or -1 if it does not exist
+    long version(String filename) throws RemoteException;
+
+    // Files are copied between servers in pieces, so that moving files doesn't go through the front end and no single
+    // call holds a whole large file. The target stages the pieces and only stores the file once it is committed
+    // Starts receiving a copy of a file on the target. Returns the copy ID, or null if the target already has the file
+    String startCopy(String filename, long size) throws RemoteException;
+
+    // Sends part of a file to the copy started on the target, if the file is still at the given version
+    // Returns true if the target received it
+    boolean copyRangeTo(String filename, long version, long offset, int length, ServerInterface target, String copyID) throws RemoteException;
+
+    // Receives part of a copy, called by the server sending it
+    boolean receiveCopy(String copyID, long offset, Payload data) throws RemoteException;
+
+    // Stores a completely received copy, unless a client has stored the file here since the copy started
+    // Returns the version of the stored file, or -1 if it was not stored
+    long commitCopy(String copyID) throws RemoteException;
+
+    // Discards a copy that won't be finished
+    void abortCopy(String copyID) throws RemoteException;
 }
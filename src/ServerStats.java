@@ -0,0 +1,122 @@
+import java.io.Serializable;
+
+// Snapshot of a file server's usage, used by the front end to decide where to place uploads
+public class ServerStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long bytesUsed;
+    private final long freeSpace;
+    private final long totalSpace;
+    private final int fileCount;
+    private final int activeOperations;
+
+    // Durability metrics
+    private final String durabilityPolicy;
+    private final long syncFiles;
+    private final long syncBatches;
+    private final double averageSyncMillis;
+    private final double maxSyncMillis;
+
+    // Read cache metrics, all 0 if the cache is disabled
+    private final long cacheHits;
+    private final long cacheMisses;
+    private final long cacheResidentBytes;
+    private final int cacheEntries;
+
+    ServerStats(long bytesUsed, long freeSpace, long totalSpace, int fileCount, int activeOperations, Durability durability, ReadCache cache) {
+        this.bytesUsed = bytesUsed;
+        this.freeSpace = freeSpace;
+        this.totalSpace = totalSpace;
+        this.fileCount = fileCount;
+        this.activeOperations = activeOperations;
+
+        this.durabilityPolicy = durability.getPolicy().name();
+        this.syncFiles = durability.getSyncFiles();
+        this.syncBatches = durability.getSyncBatches();
+        this.averageSyncMillis = durability.getAverageSyncMillis();
+        this.maxSyncMillis = durability.getMaxSyncMillis();
+
+        this.cacheHits = cache == null ? 0 : cache.getHits();
+        this.cacheMisses = cache == null ? 0 : cache.getMisses();
+        this.cacheResidentBytes = cache == null ? 0 : cache.getResidentBytes();
+        this.cacheEntries = cache == null ? 0 : cache.getEntryCount();
+    }
+
+    // Bytes used by files stored on the server
+    public long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    // Usable space left on the disk the server stores files on
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    public long getTotalSpace() {
+        return totalSpace;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    // Number of uploads/downloads currently being processed
+    public int getActiveOperations() {
+        return activeOperations;
+    }
+
+    public String getDurabilityPolicy() {
+        return durabilityPolicy;
+    }
+
+    // Number of files synced, and the number of sync batches they were synced in
+    public long getSyncFiles() {
+        return syncFiles;
+    }
+
+    public long getSyncBatches() {
+        return syncBatches;
+    }
+
+    // Time taken per sync batch
+    public double getAverageSyncMillis() {
+        return averageSyncMillis;
+    }
+
+    public double getMaxSyncMillis() {
+        return maxSyncMillis;
+    }
+
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    // Bytes of file data held in the read cache
+    public long getCacheResidentBytes() {
+        return cacheResidentBytes;
+    }
+
+    public int getCacheEntries() {
+        return cacheEntries;
+    }
+
+    // Percentage of the disk that would be used after writing the given number of bytes
+    public double getDiskUsageAfter(long bytes) {
+        if (totalSpace <= 0) {
+            return 0;
+        }
+        return 100.0 * (totalSpace - freeSpace + bytes) / totalSpace;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d files, %,d bytes used, %,d bytes free, %,d active, %s sync %,d files in %,d batches (avg %.2fms, max %.2fms), "
+                        + "cache %,d hits/%,d misses with %,d files (%,d bytes) resident",
+                fileCount, bytesUsed, freeSpace, activeOperations, durabilityPolicy, syncFiles, syncBatches, averageSyncMillis, maxSyncMillis,
+                cacheHits, cacheMisses, cacheEntries, cacheResidentBytes);
+    }
+}
@@ -25,6 +25,29 @@ public class Shared {
         }
     }
 
+    // Attempts to read a system property (eg. -Dname=value) as an integer
+    // Returns the default value if the property is not set or cannot be parsed
+    public static int parsePropertyInteger(String name, String errMsg, int defaultVal) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultVal;
+        }
+
+        try {
+            int val = Integer.parseInt(value.trim());
+
+            if (val < 0) {
+                System.out.println(errMsg);
+                return defaultVal;
+            }
+
+            return val;
+        } catch (NumberFormatException e) {
+            System.out.println(errMsg);
+            return defaultVal;
+        }
+    }
+
     public static void ensureDirExists(String location) {
         // Create base dir if it doesn't exist
         File bd = new File(location);
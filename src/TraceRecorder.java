@@ -0,0 +1,427 @@
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Records every call made to a front end, with the calls it made to each server, in a compact binary file
+// Traces can be replayed against a local cluster with TraceReplay to reproduce performance problems
+//
+// File format (big endian, as written by DataOutputStream):
+//   header: int magic, int version, long start time (ms since epoch)
+//   record: long start (us since the trace started), byte op, byte flags, int filename length, UTF-8 filename,
+//           long request bytes, long response bytes, int latency (us), byte outcome, byte number of server calls, then
+//           per server call: byte server ID, byte method, int latency (us), byte outcome
+// For range downloads the request bytes hold the offset that was asked for. For pieces of chunked uploads they hold the
+// offset of the piece and the response bytes hold its length
+// Version 1 traces wrote filenames with writeUTF, which can't hold names over 64KB, and are still read
+// Calls are recorded from the moment they reach the front end, so calls turned away as busy before they were admitted
+// or given a worker are recorded too
+public class TraceRecorder {
+    private static final int MAGIC = 0x46455452; // "FETR"
+    private static final int VERSION = 2;
+
+    // Front end operations
+    public static final int DELETE = 0;
+    public static final int DOWNLOAD = 1;
+    public static final int EXISTS = 2;
+    public static final int LIST = 3;
+    public static final int UPLOAD = 4;
+    public static final int SIZE = 5;
+    public static final int DOWNLOAD_RANGE = 6;
+    public static final int START_UPLOAD = 7;
+    public static final int UPLOAD_CHUNK = 8;
+    public static final int ABORT_UPLOAD = 9;
+    public static final String[] OP_NAMES = { "delete", "download", "exists", "list", "upload", "size", "range", "start", "chunk", "abort" };
+
+    // Flags. CHUNKED marks the upload recorded when a chunked upload is finished
+    public static final int HIGH_RELIABILITY = 1;
+    public static final int CHUNKED = 2;
+
+    // Outcomes. MISS is a call that completed but did not find or store the file
+    public static final int OK = 0;
+    public static final int MISS = 1;
+    public static final int BUSY = 2;
+    public static final int ERROR = 3;
+    public static final String[] OUTCOME_NAMES = { "ok", "miss", "busy", "error" };
+
+    // Server methods are recorded by their position in this list
+    private static final List<String> SERVER_METHODS = Arrays.asList("delete", "download", "fileExists", "list", "getFilter", "stats", "upload", "size", "copyTo", "downloadRange", "subscribe", "unsubscribe", "version", "startCopy", "copyRangeTo", "receiveCopy", "commitCopy", "abortCopy");
+    private static final int MAX_SERVER_CALLS = 255;
+
+    private final String path;
+    private final long maxBytes;
+    private final long startNanos;
+    private DataOutputStream out;
+    private long bytesWritten;
+    private long numDropped = 0;
+
+    // The record of the front end call being handled by the current thread, so that server calls can be added to it
+    private final ThreadLocal<Record> currentRecord = new ThreadLocal<>();
+
+    // A single front end call
+    public static class Record {
+        public long startMicros;
+        public int op;
+        public int flags;
+        public String filename;
+        public long requestBytes;
+        public long responseBytes;
+        public int latencyMicros;
+        public int outcome;
+        public final List<ServerCall> serverCalls = new ArrayList<>();
+
+        // Server calls still running when the front end call returns (eg. a cancelled hedge) are not recorded
+        private boolean finished = false;
+
+        private synchronized void addServerCall(ServerCall call) {
+            if (!finished && serverCalls.size() < MAX_SERVER_CALLS) {
+                serverCalls.add(call);
+            }
+        }
+    }
+
+    // A call made by the front end to a server while handling a record
+    public static class ServerCall {
+        public final int serverID;
+        public final int method;
+        public final int latencyMicros;
+        public final int outcome;
+
+        public ServerCall(int serverID, int method, int latencyMicros, int outcome) {
+            this.serverID = serverID;
+            this.method = method;
+            this.latencyMicros = latencyMicros;
+            this.outcome = outcome;
+        }
+
+        public String getMethodName() {
+            return method < SERVER_METHODS.size() ? SERVER_METHODS.get(method) : "unknown";
+        }
+    }
+
+    // A front end call to be traced
+    public interface Call<T> {
+        T call() throws ServerBusyException;
+    }
+
+    // Decides whether a front end call found or stored the file
+    public interface Success<T> {
+        boolean test(T result);
+    }
+
+    public TraceRecorder(String path, long maxBytes) throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.startNanos = System.nanoTime();
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        bytesWritten = out.size();
+
+        // Records are buffered, so flush them regularly and when the JVM exits
+        Thread flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                    flush();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "trace-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    // Reads the trace file from -Dfrontend.trace.file (and the size limit from -Dfrontend.trace.maxMB)
+    // Returns null if tracing is not enabled or the file can't be created
+    public static TraceRecorder fromProperties() {
+        String path = System.getProperty("frontend.trace.file");
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+
+        int maxMB = Shared.parsePropertyInteger("frontend.trace.maxMB", "Trace size must be a positive integer", 256);
+        try {
+            System.out.println("Recording trace to '" + path + "'");
+            return new TraceRecorder(path, maxMB * 1024L * 1024L);
+        } catch (IOException e) {
+            System.out.println("Could not create trace file '" + path + "'. " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Runs a front end call and records it, along with any server calls it makes
+    public <T> T record(int op, int flags, String filename, long requestBytes, Call<T> call, Success<T> success) throws ServerBusyException {
+        return record(op, flags, filename, requestBytes, 0, call, success);
+    }
+
+    // Like record, for calls whose response size isn't their result (eg. the length of an upload piece)
+    public <T> T record(int op, int flags, String filename, long requestBytes, long responseBytes, Call<T> call, Success<T> success) throws ServerBusyException {
+        Record record = new Record();
+        record.op = op;
+        record.flags = flags;
+        record.filename = filename == null ? "" : filename;
+        record.requestBytes = requestBytes;
+        record.responseBytes = responseBytes;
+
+        long start = System.nanoTime();
+        record.startMicros = (start - startNanos) / 1000;
+        Record previous = currentRecord.get();
+        currentRecord.set(record);
+
+        try {
+            T result = call.call();
+            record.outcome = success.test(result) ? OK : MISS;
+            if (result instanceof Payload) {
+                record.responseBytes = ((Payload) result).size();
+            } else if (result instanceof FilePiece) {
+                record.responseBytes = ((FilePiece) result).getData().size();
+            } else if (result instanceof Long) {
+                record.responseBytes = Math.max(0, (Long) result);
+            }
+            return result;
+        } catch (ServerBusyException e) {
+            record.outcome = BUSY;
+            throw e;
+        } catch (RuntimeException e) {
+            record.outcome = ERROR;
+            throw e;
+        } finally {
+            record.latencyMicros = toMicros(System.nanoTime() - start);
+            currentRecord.set(previous);
+            write(record);
+        }
+    }
+
+    // Returns a call that adds the server calls it makes to the current thread's record, wherever it is run, for calls
+    // handed to another thread (eg. a worker)
+    public <T> Call<T> carry(Call<T> call) {
+        Record record = currentRecord.get();
+        return () -> {
+            Record previous = currentRecord.get();
+            currentRecord.set(record);
+            try {
+                return call.call();
+            } finally {
+                currentRecord.set(previous);
+            }
+        };
+    }
+
+    // Wraps a server stub so that the calls made through it are added to the current record
+    public ServerInterface wrap(int serverID, ServerInterface server) {
+        if (server == null) {
+            return null;
+        }
+
+        return (ServerInterface) Proxy.newProxyInstance(ServerInterface.class.getClassLoader(), new Class<?>[] { ServerInterface.class }, new ServerCallHandler(serverID, server));
+    }
+
+    // Handles calls to wrapped server stubs
+    private class ServerCallHandler implements InvocationHandler {
+        private final int serverID;
+        private final ServerInterface server;
+
+        ServerCallHandler(int serverID, ServerInterface server) {
+            this.serverID = serverID;
+            this.server = server;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(server, args);
+            }
+
+            // Servers are sent the real stub of another server, the wrapper only exists in this JVM
+            if (args != null) {
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i] != null && Proxy.isProxyClass(args[i].getClass()) && Proxy.getInvocationHandler(args[i]) instanceof ServerCallHandler) {
+                        args[i] = ((ServerCallHandler) Proxy.getInvocationHandler(args[i])).server;
+                    }
+                }
+            }
+
+            Record record = currentRecord.get();
+            long start = System.nanoTime();
+            int outcome = ERROR;
+            try {
+                Object result = method.invoke(server, args);
+                outcome = OK;
+                return result;
+            } catch (InvocationTargetException e) {
+                outcome = e.getCause() instanceof ServerBusyException ? BUSY : ERROR;
+                throw e.getCause();
+            } finally {
+                if (record != null) {
+                    record.addServerCall(new ServerCall(serverID, SERVER_METHODS.indexOf(method.getName()) & 0xFF, toMicros(System.nanoTime() - start), outcome));
+                }
+            }
+        }
+    }
+
+    // Returns an executor for a front end's parallel server calls, which carries the current record over to the
+    // threads that make the calls
+    public ExecutorService newExecutor() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>()) {
+            @Override
+            public void execute(Runnable command) {
+                Record record = currentRecord.get();
+                super.execute(() -> {
+                    currentRecord.set(record);
+                    try {
+                        command.run();
+                    } finally {
+                        currentRecord.remove();
+                    }
+                });
+            }
+        };
+    }
+
+    private synchronized void write(Record record) {
+        synchronized (record) {
+            record.finished = true;
+        }
+
+        if (out == null) {
+            return;
+        }
+
+        // Stop recording rather than filling the disk
+        if (bytesWritten >= maxBytes) {
+            if (numDropped++ == 0) {
+                System.out.println("Trace file '" + path + "' has reached its size limit, no more calls will be recorded");
+            }
+            return;
+        }
+
+        try {
+            int before = out.size();
+            out.writeLong(record.startMicros);
+            out.writeByte(record.op);
+            out.writeByte(record.flags);
+            byte[] filename = record.filename.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(filename.length);
+            out.write(filename);
+            out.writeLong(record.requestBytes);
+            out.writeLong(record.responseBytes);
+            out.writeInt(record.latencyMicros);
+            out.writeByte(record.outcome);
+            out.writeByte(record.serverCalls.size());
+            for (ServerCall call : record.serverCalls) {
+                out.writeByte(call.serverID);
+                out.writeByte(call.method);
+                out.writeInt(call.latencyMicros);
+                out.writeByte(call.outcome);
+            }
+            bytesWritten += out.size() - before;
+        } catch (IOException e) {
+            System.out.println("Could not write to trace file, stopping trace. " + e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    public synchronized void flush() {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Could not write to trace file, stopping trace. " + e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+    }
+
+    private static int toMicros(long nanos) {
+        return (int) Math.min(nanos / 1000, Integer.MAX_VALUE);
+    }
+
+    // Reads every record from a trace file. A record cut short at the end of the file (eg. the front end was killed)
+    // is ignored
+    public static List<Record> read(String path) throws IOException {
+        List<Record> records = new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("'" + path + "' is not a trace file");
+            }
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            in.readLong();
+
+            while (true) {
+                Record record = new Record();
+                try {
+                    record.startMicros = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                try {
+                    record.op = in.readUnsignedByte();
+                    record.flags = in.readUnsignedByte();
+                    record.filename = version == 1 ? in.readUTF() : readFilename(in);
+                    record.requestBytes = in.readLong();
+                    record.responseBytes = in.readLong();
+                    record.latencyMicros = in.readInt();
+                    record.outcome = in.readUnsignedByte();
+                    int numCalls = in.readUnsignedByte();
+                    for (int i = 0; i < numCalls; i++) {
+                        record.serverCalls.add(new ServerCall(in.readUnsignedByte(), in.readUnsignedByte(), in.readInt(), in.readUnsignedByte()));
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                record.finished = true;
+                records.add(record);
+            }
+        }
+
+        return records;
+    }
+
+    private static String readFilename(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Filename length is negative");
+        }
+
+        byte[] filename = new byte[length];
+        in.readFully(filename);
+        return new String(filename, StandardCharsets.UTF_8);
+    }
+}
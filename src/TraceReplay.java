@@ -0,0 +1,408 @@
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Replays a trace recorded by a front end (see TraceRecorder) against a local cluster, and compares traces
+//
+// replay <trace> [speed] [output trace] - replays the calls at their recorded times divided by speed (default 1, 0 means
+//     as fast as possible). The replay's front end records its own trace, which is then compared with the original
+// compare <baseline trace> <new trace> - compares the throughput and latency of two traces, eg. replays of the same
+//     trace by two different builds
+public class TraceReplay {
+    private static final int NUM_SERVERS = 3;
+
+    public static void main(String[] args) {
+        if (args.length >= 2 && args[0].equals("replay")) {
+            double speed = 1;
+            if (args.length >= 3) {
+                try {
+                    speed = Double.parseDouble(args[2]);
+                } catch (NumberFormatException e) {
+                    System.out.println("Speed must be a number");
+                    return;
+                }
+            }
+
+            try {
+                replay(args[1], speed, args.length >= 4 ? args[3] : null);
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Replay failed: " + e.toString());
+                e.printStackTrace();
+            }
+            System.exit(0);
+        } else if (args.length >= 3 && args[0].equals("compare")) {
+            try {
+                compare(args[1], args[2]);
+            } catch (IOException e) {
+                System.err.println("Could not read traces: " + e.getMessage());
+            }
+        } else {
+            System.out.println("Must receive arguments in the form: replay <trace> [speed] [output trace]");
+            System.out.println("                                 or: compare <baseline trace> <new trace>");
+        }
+    }
+
+    private static void replay(String tracePath, double speed, String outputPath) throws IOException, InterruptedException {
+        List<TraceRecorder.Record> records = TraceRecorder.read(tracePath);
+        if (records.isEmpty()) {
+            System.out.println("Trace is empty");
+            return;
+        }
+        System.out.println(String.format("Replaying %,d calls from '%s' at %s", records.size(), tracePath, speed > 0 ? speed + "x speed" : "full speed"));
+
+        // The replay's front end records its own trace, to be compared with the original
+        if (outputPath == null) {
+            File output = File.createTempFile("replay_", ".trace");
+            output.deleteOnExit();
+            outputPath = output.getPath();
+        }
+        System.setProperty("frontend.trace.file", outputPath);
+
+        int threads = Shared.parsePropertyInteger("replay.threads", "Number of threads must be a positive integer", 64);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        try (LocalCluster cluster = new LocalCluster(NUM_SERVERS)) {
+            preload(records, cluster);
+            FrontEnd frontEnd = cluster.startFrontEnd();
+            FrontEndInterface stub = cluster.getFrontEndStub();
+
+            // Issue each call at its recorded time. Calls run on a pool so that calls which overlapped in the trace
+            // overlap in the replay, but a call that started after the previous call on the same file had finished
+            // waits for it, so that (for example) a download is not replayed before the upload it depended on
+            // Each call catches its own failures, so one failed call never stops the later calls on its file
+            // Pieces of a chunked upload may overlap each other, but always wait for the upload to start, and finishing
+            // or aborting it waits for every piece
+            int[] outcomes = new int[TraceRecorder.OUTCOME_NAMES.length];
+            Map<String, TraceRecorder.Record> lastRecords = new HashMap<>();
+            Map<String, CompletableFuture<Void>> lastCalls = new HashMap<>();
+            Map<String, List<CompletableFuture<Void>>> uploadCalls = new HashMap<>();
+            Map<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+            List<CompletableFuture<Void>> calls = new ArrayList<>();
+
+            long firstMicros = records.get(0).startMicros;
+            long startNanos = System.nanoTime();
+            long maxLagNanos = 0;
+            for (TraceRecorder.Record record : records) {
+                if (speed > 0) {
+                    long dueNanos = startNanos + (long) ((record.startMicros - firstMicros) * 1000 / speed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    } else {
+                        maxLagNanos = Math.max(maxLagNanos, -waitNanos);
+                    }
+                }
+
+                TraceRecorder.Record previous = lastRecords.put(record.filename, record);
+                CompletableFuture<Void> after = null;
+                if (record.op != TraceRecorder.LIST && previous != null && previous.startMicros + previous.latencyMicros <= record.startMicros) {
+                    after = lastCalls.get(record.filename);
+                }
+
+                List<CompletableFuture<Void>> pieces = uploadCalls.get(record.filename);
+                boolean endsUpload = record.op == TraceRecorder.ABORT_UPLOAD || (record.op == TraceRecorder.UPLOAD && (record.flags & TraceRecorder.CHUNKED) != 0);
+                if (pieces != null && record.op == TraceRecorder.UPLOAD_CHUNK && after == null) {
+                    after = pieces.get(0);
+                } else if (pieces != null && endsUpload) {
+                    after = CompletableFuture.allOf(pieces.toArray(new CompletableFuture<?>[pieces.size()]));
+                }
+
+                Runnable replay = () -> countOutcome(outcomes, replayCall(stub, record, uploads));
+                CompletableFuture<Void> call = after != null ? after.thenRunAsync(replay, executor) : CompletableFuture.runAsync(replay, executor);
+                lastCalls.put(record.filename, call);
+                calls.add(call);
+
+                if (record.op == TraceRecorder.START_UPLOAD) {
+                    uploadCalls.put(record.filename, new ArrayList<>(Collections.singletonList(call)));
+                } else if (pieces != null && record.op == TraceRecorder.UPLOAD_CHUNK) {
+                    pieces.add(call);
+                } else if (endsUpload) {
+                    uploadCalls.remove(record.filename);
+                }
+            }
+
+            CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[calls.size()])).join();
+            executor.shutdown();
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            frontEnd.closeTrace();
+
+            System.out.println(String.format("Replay finished in %,.2fs (calls were issued up to %,.1fms late)", seconds, maxLagNanos / 1e6));
+            synchronized (outcomes) {
+                System.out.println(String.format("Replayed calls as seen by the client: %,d ok, %,d busy, %,d errors", outcomes[TraceRecorder.OK], outcomes[TraceRecorder.BUSY], outcomes[TraceRecorder.ERROR]));
+            }
+            System.out.println("Replay trace written to '" + outputPath + "'");
+        }
+
+        compare(tracePath, outputPath);
+    }
+
+    // Puts files that the trace reads but never uploads onto the servers before the replay starts, so that the
+    // replayed calls find them as the recorded ones did
+    private static void preload(List<TraceRecorder.Record> records, LocalCluster cluster) throws RemoteException {
+        // Files whose first successful use isn't an upload, and the size they need to be for every read to succeed
+        Set<String> uploaded = new HashSet<>();
+        Map<String, Long> preloadSizes = new LinkedHashMap<>();
+
+        for (TraceRecorder.Record record : records) {
+            if (record.op == TraceRecorder.UPLOAD) {
+                uploaded.add(record.filename);
+                continue;
+            }
+            if (record.op == TraceRecorder.LIST || record.op == TraceRecorder.START_UPLOAD || record.op == TraceRecorder.UPLOAD_CHUNK || record.op == TraceRecorder.ABORT_UPLOAD) {
+                continue;
+            }
+            if (record.outcome != TraceRecorder.OK || uploaded.contains(record.filename)) {
+                continue;
+            }
+
+            long size;
+            if (record.op == TraceRecorder.DOWNLOAD || record.op == TraceRecorder.SIZE) {
+                size = record.responseBytes;
+            } else if (record.op == TraceRecorder.DOWNLOAD_RANGE) {
+                size = record.requestBytes + record.responseBytes;
+            } else {
+                size = 0;
+            }
+            preloadSizes.merge(record.filename, size, Math::max);
+
+            // Anything after a delete relies on a later upload
+            if (record.op == TraceRecorder.DELETE) {
+                uploaded.add(record.filename);
+            }
+        }
+
+        for (Map.Entry<String, Long> entry : preloadSizes.entrySet()) {
+            int id = Math.floorMod(entry.getKey().hashCode(), cluster.getNumServers()) + 1;
+            cluster.getServer(id).upload(entry.getKey(), Payload.wrap(generateData(entry.getKey(), entry.getValue())));
+        }
+
+        System.out.println(String.format("Preloaded %,d files that existed before the trace started", preloadSizes.size()));
+    }
+
+    // Makes a recorded call and returns its outcome as the client saw it (OK, BUSY or ERROR)
+    // Failures are returned rather than thrown. The front end's trace records them too, unless they happened before the
+    // call reached it
+    // Chunked uploads are replayed as chunks, as files larger than a single call can take are only accepted that way
+    private static int replayCall(FrontEndInterface frontEnd, TraceRecorder.Record record, Map<String, ChunkedUpload> uploads) {
+        boolean highReliability = (record.flags & TraceRecorder.HIGH_RELIABILITY) != 0;
+        try {
+            switch (record.op) {
+                case TraceRecorder.DELETE:
+                    frontEnd.delete(record.filename);
+                    break;
+                case TraceRecorder.DOWNLOAD:
+                    release(frontEnd.download(record.filename));
+                    break;
+                case TraceRecorder.EXISTS:
+                    frontEnd.fileExists(record.filename);
+                    break;
+                case TraceRecorder.LIST:
+                    frontEnd.list();
+                    break;
+                case TraceRecorder.SIZE:
+                    frontEnd.size(record.filename);
+                    break;
+                case TraceRecorder.DOWNLOAD_RANGE:
+                    release(frontEnd.downloadRange(record.filename, record.requestBytes, (int) Math.max(record.responseBytes, 1)));
+                    break;
+                case TraceRecorder.UPLOAD:
+                    if ((record.flags & TraceRecorder.CHUNKED) == 0) {
+                        frontEnd.upload(record.filename, Payload.wrap(generateData(record.filename, record.requestBytes)), highReliability);
+                        break;
+                    }
+
+                    // A finish turned away as busy keeps the upload, so that it can be finished again
+                    ChunkedUpload finished = uploads.get(record.filename);
+                    if (finished == null) {
+                        return TraceRecorder.ERROR;
+                    }
+                    frontEnd.finishUpload(finished.uploadID);
+                    uploads.remove(record.filename, finished);
+                    break;
+                case TraceRecorder.START_UPLOAD:
+                    String uploadID = frontEnd.startUpload(record.filename, record.requestBytes, highReliability);
+                    if (uploadID == null) {
+                        return TraceRecorder.ERROR;
+                    }
+                    uploads.put(record.filename, new ChunkedUpload(uploadID, generateData(record.filename, record.requestBytes)));
+                    break;
+                case TraceRecorder.UPLOAD_CHUNK:
+                    ChunkedUpload upload = uploads.get(record.filename);
+                    if (upload == null) {
+                        return TraceRecorder.ERROR;
+                    }
+                    int offset = (int) Math.min(record.requestBytes, upload.data.length);
+                    int length = (int) Math.min(record.responseBytes, upload.data.length - offset);
+                    frontEnd.uploadChunk(upload.uploadID, record.requestBytes, Payload.wrap(upload.data, offset, length));
+                    break;
+                case TraceRecorder.ABORT_UPLOAD:
+                    ChunkedUpload aborted = uploads.remove(record.filename);
+                    if (aborted != null) {
+                        frontEnd.abortUpload(aborted.uploadID);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return TraceRecorder.OK;
+        } catch (ServerBusyException e) {
+            return TraceRecorder.BUSY;
+        } catch (RemoteException | RuntimeException e) {
+            return TraceRecorder.ERROR;
+        }
+    }
+
+    // A chunked upload started by the replay, and the data its pieces are taken from
+    private static class ChunkedUpload {
+        final String uploadID;
+        final byte[] data;
+
+        ChunkedUpload(String uploadID, byte[] data) {
+            this.uploadID = uploadID;
+            this.data = data;
+        }
+    }
+
+    private static void countOutcome(int[] outcomes, int outcome) {
+        synchronized (outcomes) {
+            outcomes[outcome]++;
+        }
+    }
+
+    // Downloaded data isn't used, so its buffer can be reused straight away
+    private static void release(Payload data) {
+        if (data != null) {
+            data.release();
+        }
+    }
+
+    // File contents aren't recorded, so the same pseudo-random data is generated for a file on every replay
+    private static byte[] generateData(String filename, long size) {
+        byte[] data = new byte[(int) Math.min(size, Integer.MAX_VALUE - 8)];
+        new Random(filename.hashCode() * 31L + size).nextBytes(data);
+        return data;
+    }
+
+    private static void compare(String baselinePath, String newPath) throws IOException {
+        Summary baseline = new Summary(TraceRecorder.read(baselinePath));
+        Summary current = new Summary(TraceRecorder.read(newPath));
+
+        System.out.println();
+        System.out.println("Baseline: " + baselinePath);
+        System.out.println("New:      " + newPath);
+        System.out.println(String.format("Throughput: %,.1f -> %,.1f calls/s %s", baseline.getThroughput(), current.getThroughput(), difference(baseline.getThroughput(), current.getThroughput())));
+        System.out.println();
+        System.out.println(String.format("%-10s %17s %-30s %-30s %-30s %s", "Operation", "Calls", "p50 ms", "p95 ms", "p99 ms", "Busy / errors / misses"));
+
+        for (int op = 0; op < TraceRecorder.OP_NAMES.length; op++) {
+            OpSummary a = baseline.ops[op];
+            OpSummary b = current.ops[op];
+            if (a.latencies.isEmpty() && b.latencies.isEmpty()) {
+                continue;
+            }
+
+            System.out.println(String.format("%-10s %17s %-30s %-30s %-30s %s", TraceRecorder.OP_NAMES[op],
+                    String.format("%,d -> %,d", a.latencies.size(), b.latencies.size()),
+                    compareLatency(a, b, 50), compareLatency(a, b, 95), compareLatency(a, b, 99),
+                    String.format("%s -> %s", a.describeFailures(), b.describeFailures())));
+        }
+
+        // Where the time went. Server calls are grouped by method
+        System.out.println();
+        System.out.println(String.format("%-10s %17s %-30s %-30s", "Server call", "Calls", "p50 ms", "p99 ms"));
+        Set<String> methods = new TreeSet<>(baseline.serverCalls.keySet());
+        methods.addAll(current.serverCalls.keySet());
+        for (String method : methods) {
+            OpSummary a = baseline.serverCalls.getOrDefault(method, new OpSummary());
+            OpSummary b = current.serverCalls.getOrDefault(method, new OpSummary());
+            System.out.println(String.format("%-10s %17s %-30s %-30s", method, String.format("%,d -> %,d", a.latencies.size(), b.latencies.size()),
+                    compareLatency(a, b, 50), compareLatency(a, b, 99)));
+        }
+    }
+
+    private static String compareLatency(OpSummary a, OpSummary b, double percentile) {
+        double before = a.percentile(percentile) / 1000.0;
+        double after = b.percentile(percentile) / 1000.0;
+        return String.format("%,.2f -> %,.2f %s", before, after, difference(before, after));
+    }
+
+    private static String difference(double before, double after) {
+        if (before <= 0 || after < 0) {
+            return "";
+        }
+        return String.format("(%+.0f%%)", (after - before) * 100 / before);
+    }
+
+    // Latencies and outcomes of the calls in a trace
+    private static class Summary {
+        final OpSummary[] ops = new OpSummary[TraceRecorder.OP_NAMES.length];
+        final Map<String, OpSummary> serverCalls = new HashMap<>();
+        final int numCalls;
+        final long spanMicros;
+
+        Summary(List<TraceRecorder.Record> records) {
+            for (int i = 0; i < ops.length; i++) {
+                ops[i] = new OpSummary();
+            }
+
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            for (TraceRecorder.Record record : records) {
+                if (record.op < ops.length) {
+                    ops[record.op].add(record.latencyMicros, record.outcome);
+                }
+                for (TraceRecorder.ServerCall call : record.serverCalls) {
+                    serverCalls.computeIfAbsent(call.getMethodName(), k -> new OpSummary()).add(call.latencyMicros, call.outcome);
+                }
+
+                first = Math.min(first, record.startMicros);
+                last = Math.max(last, record.startMicros + record.latencyMicros);
+            }
+
+            numCalls = records.size();
+            spanMicros = records.isEmpty() ? 0 : last - first;
+        }
+
+        double getThroughput() {
+            return spanMicros == 0 ? 0 : numCalls * 1e6 / spanMicros;
+        }
+    }
+
+    private static class OpSummary {
+        final List<Integer> latencies = new ArrayList<>();
+        final int[] outcomes = new int[TraceRecorder.OUTCOME_NAMES.length];
+        private boolean sorted = false;
+
+        void add(int latencyMicros, int outcome) {
+            latencies.add(latencyMicros);
+            if (outcome < outcomes.length) {
+                outcomes[outcome]++;
+            }
+            sorted = false;
+        }
+
+        // Returns the percentile latency in microseconds, or -1 if there were no calls
+        long percentile(double percentile) {
+            if (latencies.isEmpty()) {
+                return -1;
+            }
+            if (!sorted) {
+                Collections.sort(latencies);
+                sorted = true;
+            }
+
+            int index = (int) Math.ceil(percentile / 100 * latencies.size()) - 1;
+            return latencies.get(Math.max(0, Math.min(index, latencies.size() - 1)));
+        }
+
+        String describeFailures() {
+            return String.format("%,d/%,d/%,d", outcomes[TraceRecorder.BUSY], outcomes[TraceRecorder.ERROR], outcomes[TraceRecorder.MISS]);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+import javafx.beans.binding.Bindings;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs uploads and downloads in the background, a few at a time (-Dclient.transfers.parallel, default 3)
+// Files are streamed to and from disk in chunks (-Dclient.transfers.chunkKB, default 1024) so that large files never
+// have to fit in memory. Every transfer reports its progress and speed and can be cancelled
+public class TransferManager {
+    // How many times a chunk is retried while the front ends are busy, and the wait before the first retry
+    private static final int MAX_BUSY_RETRIES = 10;
+    private static final int BUSY_RETRY_MS = 200;
+
+    // How many times a transfer starts again from the beginning, after losing its front end or the copy of the file it
+    // was downloading
+    private static final int MAX_RESTARTS = 3;
+
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final ObservableList<Transfer> transfers = FXCollections.observableArrayList();
+
+    public TransferManager() {
+        int parallel = Shared.parsePropertyInteger("client.transfers.parallel", "Number of parallel transfers must be a positive integer", 3);
+        int chunkKB = Shared.parsePropertyInteger("client.transfers.chunkKB", "Chunk size must be a positive integer", 1024);
+        this.chunkSize = Math.max(1, chunkKB) * 1024;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallel), runnable -> {
+            Thread thread = new Thread(runnable, "transfer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ObservableList<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    // Queues an upload of a local file. Must be called on the JavaFX thread
+    public void upload(FrontEndInterface frontEnd, File file, String filename, boolean highReliability) {
+        start(new UploadTransfer(frontEnd, file, filename, highReliability));
+    }
+
+    // Queues a download to a local file. Must be called on the JavaFX thread
+    public void download(FrontEndInterface frontEnd, String filename, File outFile) {
+        start(new DownloadTransfer(frontEnd, filename, outFile));
+    }
+
+    // Cancels every transfer that hasn't finished
+    public void cancelAll() {
+        for (Transfer transfer : transfers) {
+            transfer.cancel();
+        }
+    }
+
+    private void start(Transfer transfer) {
+        transfer.setOnSucceeded(event -> Log.log(transfer.getValue()));
+        // A failure only ends that transfer, the others carry on with whichever front ends are left
+        transfer.setOnFailed(event -> Log.log(transfer.getName() + " failed. " + transfer.getException().getMessage()));
+        transfer.setOnCancelled(event -> Log.log(transfer.getName() + " cancelled"));
+
+        transfers.add(transfer);
+        executor.execute(transfer);
+    }
+
+    // A call to the front end, retried while the front ends are busy
+    private interface FrontEndCall<T> {
+        T call() throws RemoteException;
+    }
+
+    // A single upload or download. The message holds the progress and speed
+    public abstract class Transfer extends Task<String> {
+        protected final FrontEndInterface frontEnd;
+        private final String name;
+        private long startTime;
+        private long bytesDone = 0;
+
+        Transfer(FrontEndInterface frontEnd, String name) {
+            this.frontEnd = frontEnd;
+            this.name = name;
+            updateMessage("Queued");
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        protected final String call() throws Exception {
+            startTime = System.nanoTime();
+            String result = transfer();
+
+            double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+            updateMessage(String.format("%s in %,.1fs at %s/s", formatBytes(bytesDone), seconds, formatBytes((long) (bytesDone / seconds))));
+            return result;
+        }
+
+        protected abstract String transfer() throws Exception;
+
+        protected void reportProgress(long done, long total) {
+            bytesDone = done;
+            double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+            updateProgress(done, Math.max(total, 1));
+            updateMessage(String.format("%s of %s at %s/s", formatBytes(done), formatBytes(total), formatBytes((long) (done / seconds))));
+        }
+
+        protected <T> T retryWhileBusy(FrontEndCall<T> call) throws RemoteException, InterruptedException {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return call.call();
+                } catch (ServerBusyException e) {
+                    if (attempt >= MAX_BUSY_RETRIES || isCancelled()) {
+                        throw e;
+                    }
+                    updateMessage("Front ends are busy, retrying");
+                    Thread.sleep((long) BUSY_RETRY_MS << Math.min(attempt, 5));
+                }
+            }
+        }
+    }
+
+    private class UploadTransfer extends Transfer {
+        private final File file;
+        private final String filename;
+        private final boolean highReliability;
+
+        UploadTransfer(FrontEndInterface frontEnd, File file, String filename, boolean highReliability) {
+            super(frontEnd, "Upload of '" + filename + "'");
+            this.file = file;
+            this.filename = filename;
+            this.highReliability = highReliability;
+        }
+
+        // An upload is held by the front end that started it, so if that front end fails the upload is started again on
+        // another one. The pool has already dropped the failed front end by then
+        @Override
+        protected String transfer() throws Exception {
+            for (int restarts = 0; ; restarts++) {
+                try {
+                    return upload();
+                } catch (ServerBusyException e) {
+                    throw e;
+                } catch (RemoteException e) {
+                    if (restarts >= MAX_RESTARTS || isCancelled()) {
+                        throw e;
+                    }
+                    Log.log(getName() + " lost its front end, starting again. " + e.getMessage());
+                    reportProgress(0, file.length());
+                }
+            }
+        }
+
+        private String upload() throws Exception {
+            long size = file.length();
+            String uploadID = retryWhileBusy(() -> frontEnd.startUpload(filename, size, highReliability));
+            if (uploadID == null) {
+                throw new IOException("The front end could not start the upload");
+            }
+
+            boolean finished = false;
+            try (FileInputStream in = new FileInputStream(file)) {
+                byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(size, 1))];
+                long offset = 0;
+                while (offset < size) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+
+                    int length = readFully(in, buffer, (int) Math.min(buffer.length, size - offset));
+                    if (length <= 0) {
+                        throw new IOException("File became shorter while it was being uploaded");
+                    }
+
+                    // The buffer is only reused once the call has returned, by which point it has been sent
+                    Payload chunk = Payload.wrap(buffer, 0, length);
+                    long chunkOffset = offset;
+                    if (!retryWhileBusy(() -> frontEnd.uploadChunk(uploadID, chunkOffset, chunk))) {
+                        throw new IOException("The front end abandoned the upload");
+                    }
+
+                    offset += length;
+                    reportProgress(offset, size);
+                }
+
+                updateMessage("Storing on servers");
+                String response = retryWhileBusy(() -> frontEnd.finishUpload(uploadID));
+                finished = true;
+                if (!response.startsWith("Uploaded")) {
+                    throw new IOException(response);
+                }
+                return response;
+            } finally {
+                if (!finished) {
+                    abort(uploadID);
+                }
+            }
+        }
+
+        private void abort(String uploadID) {
+            try {
+                frontEnd.abortUpload(uploadID);
+            } catch (RemoteException ignored) {
+                // The front end abandons idle uploads by itself
+            }
+        }
+    }
+
+    private class DownloadTransfer extends Transfer {
+        private final String filename;
+        private final File outFile;
+
+        DownloadTransfer(FrontEndInterface frontEnd, String filename, File outFile) {
+            super(frontEnd, "Download of '" + filename + "'");
+            this.filename = filename;
+            this.outFile = outFile;
+        }
+
+        // Every piece comes from the copy of the file that the first piece was read from, so that a download never
+        // mixes two versions of the file. If that copy changes or can't be reached, the download starts again
+        @Override
+        protected String transfer() throws Exception {
+            // Written to a separate file first, so that a failed download never leaves a partial file behind
+            //noinspection ResultOfMethodCallIgnored
+            outFile.getAbsoluteFile().getParentFile().mkdirs();
+            File partFile = new File(outFile.getPath() + ".part");
+            boolean finished = false;
+            try {
+                try (FileOutputStream out = new FileOutputStream(partFile)) {
+                    String copy = null;
+                    long size = -1;
+                    long offset = 0;
+                    int restarts = 0;
+                    while (copy == null || offset < size) {
+                        if (isCancelled()) {
+                            return null;
+                        }
+
+                        String chunkCopy = copy;
+                        long chunkOffset = offset;
+                        int length = (int) (copy == null ? chunkSize : Math.min(chunkSize, size - offset));
+                        // A piece we had no memory to receive is asked for again like any other busy call
+                        FilePiece piece = retryWhileBusy(() -> {
+                            FilePiece received = frontEnd.downloadPiece(filename, chunkCopy, chunkOffset, length);
+                            if (received != null) {
+                                received.getData().checkReceived();
+                            }
+                            return received;
+                        });
+
+                        if (piece == null && copy == null) {
+                            throw new FileNotFoundException("File does not exist on the available servers (or an internal server error occurred)");
+                        }
+                        if (piece == null) {
+                            if (++restarts > MAX_RESTARTS) {
+                                throw new IOException("File kept changing or could not be read during the download");
+                            }
+                            Log.log(getName() + " lost the copy of the file it was reading, starting again");
+                            out.getChannel().truncate(0);
+                            out.getChannel().position(0);
+                            copy = null;
+                            offset = 0;
+                            continue;
+                        }
+
+                        Payload data = piece.getData();
+                        if (copy == null) {
+                            copy = piece.getCopy();
+                            size = piece.getFileSize();
+                        }
+                        if (data.size() == 0 && offset < size) {
+                            data.release();
+                            throw new IOException("File could not be read during the download");
+                        }
+
+                        // Written straight from the pooled buffer it was received into, which is then reused
+                        try {
+                            ByteBuffer buffer = data.buffer();
+                            while (buffer.hasRemaining()) {
+                                out.getChannel().write(buffer);
+                            }
+                            offset += data.size();
+                        } finally {
+                            data.release();
+                        }
+                        reportProgress(offset, size);
+                    }
+                }
+
+                Files.move(partFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                finished = true;
+                return "Saved '" + filename + "' to " + outFile.getPath();
+            } finally {
+                if (!finished) {
+                    //noinspection ResultOfMethodCallIgnored
+                    partFile.delete();
+                }
+            }
+        }
+    }
+
+    // Reads until the buffer has length bytes or the stream ends
+    // Returns the number of bytes read
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / (double) (1L << (unit * 10)), "KMGTPE".charAt(unit - 1));
+    }
+
+    // Shows a transfer in a list with its progress and a button to cancel it, or to remove it from the list once it
+    // has finished
+    public class Cell extends ListCell<Transfer> {
+        private final Label label = new Label();
+        private final ProgressBar progressBar = new ProgressBar();
+        private final Button button = new Button();
+        private final HBox box = new HBox(10, label, progressBar, button);
+
+        public Cell() {
+            box.setAlignment(Pos.CENTER_LEFT);
+            label.setMaxWidth(Double.MAX_VALUE);
+            HBox.setHgrow(label, Priority.ALWAYS);
+            progressBar.setPrefWidth(120);
+        }
+
+        @Override
+        protected void updateItem(Transfer transfer, boolean empty) {
+            super.updateItem(transfer, empty);
+
+            label.textProperty().unbind();
+            progressBar.progressProperty().unbind();
+            button.textProperty().unbind();
+
+            if (empty || transfer == null) {
+                setGraphic(null);
+                return;
+            }
+
+            label.textProperty().bind(Bindings.createStringBinding(() -> transfer.getName() + " - " + describe(transfer), transfer.messageProperty(), transfer.stateProperty()));
+            progressBar.progressProperty().bind(transfer.progressProperty());
+            button.textProperty().bind(Bindings.createStringBinding(() -> isFinished(transfer) ? "Remove" : "Cancel", transfer.stateProperty()));
+            button.setOnAction(event -> {
+                if (isFinished(transfer)) {
+                    transfers.remove(transfer);
+                } else {
+                    transfer.cancel();
+                }
+            });
+
+            setGraphic(box);
+        }
+
+        private String describe(Transfer transfer) {
+            switch (transfer.getState()) {
+                case SUCCEEDED:
+                    return "Done, " + transfer.getMessage();
+                case FAILED:
+                    return "Failed: " + (transfer.getException() == null ? "unknown error" : transfer.getException().getMessage());
+                case CANCELLED:
+                    return "Cancelled";
+                default:
+                    return transfer.getMessage();
+            }
+        }
+
+        private boolean isFinished(Transfer transfer) {
+            Worker.State state = transfer.getState();
+            return state == Worker.State.SUCCEEDED || state == Worker.State.FAILED || state == Worker.State.CANCELLED;
+        }
+    }
+}
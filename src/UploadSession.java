@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+// An upload that a client is sending to a front end in pieces
+// Pieces are written to a temporary file as they arrive, so the front end only holds the whole file in memory while it
+// is being sent to the servers
+public class UploadSession {
+    private final String filename;
+    private final long size;
+    private final boolean highReliability;
+    private final Path tempFile;
+    private final FileChannel channel;
+
+    // Ranges of the file received so far (start to end), kept merged so that a piece sent again (eg. a retry after a
+    // timeout) or overlapping another is only counted once
+    private final TreeMap<Long, Long> received = new TreeMap<>();
+    private long bytesReceived = 0;
+    private long lastUsed = System.currentTimeMillis();
+    private boolean closed = false;
+
+    public UploadSession(String filename, long size, boolean highReliability) throws IOException {
+        this.filename = filename;
+        this.size = size;
+        this.highReliability = highReliability;
+        this.tempFile = Files.createTempFile("upload_", ".part");
+        this.channel = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Writes a piece of the file. Pieces can arrive in any order, and may overlap or repeat earlier ones
+    public synchronized void write(long offset, Payload data) throws IOException {
+        if (closed) {
+            throw new IOException("Upload has been closed");
+        }
+        if (offset < 0 || offset + data.size() > size) {
+            throw new IOException(String.format("Piece at %,d (%,d bytes) is outside the file (%,d bytes)", offset, data.size(), size));
+        }
+
+        ByteBuffer buffer = data.buffer();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+
+        addRange(offset, offset + data.size());
+        lastUsed = System.currentTimeMillis();
+    }
+
+    // Records that [start, end) has been received, merging it with any ranges it touches
+    private void addRange(long start, long end) {
+        if (start == end) {
+            return;
+        }
+
+        Map.Entry<Long, Long> before = received.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            received.remove(before.getKey());
+            bytesReceived -= before.getValue() - before.getKey();
+        }
+
+        for (Map.Entry<Long, Long> after = received.ceilingEntry(start); after != null && after.getKey() <= end; after = received.ceilingEntry(start)) {
+            end = Math.max(end, after.getValue());
+            received.remove(after.getKey());
+            bytesReceived -= after.getValue() - after.getKey();
+        }
+
+        received.put(start, end);
+        bytesReceived += end - start;
+    }
+
+    public synchronized boolean isComplete() {
+        return bytesReceived == size;
+    }
+
+    // Reads the whole file back into a pooled buffer so that it can be sent to the servers
+    // The payload must be released once it has been sent
+    public synchronized Payload readAll() throws IOException {
+        Payload payload = Payload.allocate((int) size);
+        ByteBuffer buffer = payload.buffer();
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) == -1) {
+                    throw new IOException("Upload is shorter than expected");
+                }
+            }
+        } catch (IOException e) {
+            payload.release();
+            throw e;
+        }
+        return payload;
+    }
+
+    // Deletes the temporary file. The session can't be used afterwards
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        try {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            System.out.println("Could not delete temporary upload file '" + tempFile + "'. " + e.getMessage());
+        }
+    }
+
+    public synchronized long getIdleMs() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public boolean isHighReliability() {
+        return highReliability;
+    }
+}
@@ -0,0 +1,112 @@
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs transfers on a fixed number of worker threads rather than on the thread RMI gives each call
+// RMI still takes a thread per call, but those threads only wait here: reading and writing files, talking to servers
+// and holding the data is done by at most <prefix>.workers threads (default 64). Up to <prefix>.workers.queue more
+// calls wait for a worker (default 64), and any beyond that are rejected straight away with a ServerBusyException
+public class WorkerPool {
+    // RMI only knows the caller on the thread it called us on, so it is handed over to the worker
+    private static final ThreadLocal<String> clientHosts = new ThreadLocal<>();
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong numRejected = new AtomicLong();
+
+    // A call run by a worker
+    public interface Task<T> {
+        T call() throws ServerBusyException;
+    }
+
+    public WorkerPool(String name, int threads, int queueSize) {
+        this.name = name;
+
+        AtomicInteger nextThread = new AtomicInteger(1);
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, name.toLowerCase().replace(' ', '-') + "-worker-" + nextThread.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        // A SynchronousQueue hands calls straight to a free worker when no queue is wanted
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // Reads the pool size from <prefix>.workers and the queue length from <prefix>.workers.queue
+    public static WorkerPool fromProperties(String name, String prefix) {
+        int threads = Shared.parsePropertyInteger(prefix + ".workers", "Number of workers must be a positive integer", 64);
+        int queueSize = Shared.parsePropertyInteger(prefix + ".workers.queue", "Worker queue length must be a positive integer", 64);
+        return new WorkerPool(name, Math.max(1, threads), Math.max(0, queueSize));
+    }
+
+    // Runs the call on a worker and waits for its result
+    // Rejected with a ServerBusyException if every worker is busy and the queue is full
+    public <T> T run(Task<T> task) throws ServerBusyException {
+        String clientHost = getClientHost();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                clientHosts.set(clientHost);
+                try {
+                    return task.call();
+                } finally {
+                    clientHosts.remove();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw reject("all " + executor.getMaximumPoolSize() + " workers are busy and " + executor.getQueue().size() + " calls are waiting");
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw reject("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServerBusyException) {
+                throw (ServerBusyException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private ServerBusyException reject(String reason) {
+        long rejected = numRejected.incrementAndGet();
+        String msg = name + " is busy, retry later: " + reason;
+        System.out.println(msg + " (" + rejected + " rejected so far)");
+        return new ServerBusyException(msg);
+    }
+
+    // Returns the host of the client whose call is being run, on either the RMI thread or a worker
+    // Calls made directly rather than through RMI (eg. by the benchmarking tools) count as one local client
+    public static String getClientHost() {
+        String clientHost = clientHosts.get();
+        if (clientHost != null) {
+            return clientHost;
+        }
+
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return "local";
+        }
+    }
+
+    public int getActiveWorkers() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return numRejected.get();
+    }
+}